@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.tuplejump.stargate.lucene.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User: satya
+ * Commits an index when its commit interval elapses or its uncommitted docs or RAM cross the configured limits.
+ * Commit requests which arrive while a commit is running are served by a single following commit.
+ * Scheduled checks skip the commit when no rows were published to the index since the last commit.
+ */
+public class CommitScheduler {
+    protected static final Logger logger = LoggerFactory.getLogger(CommitScheduler.class);
+    static final long CHECK_INTERVAL = Long.getLong("sg.commit.check.ms", 1000);
+    static final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(Integer.getInteger("sg.commit.threads", 2),
+            new ThreadFactoryBuilder().setNameFormat("SGCommit-Thread-%d").setDaemon(true).build());
+
+    private final RowIndex rowIndex;
+    private final Properties properties;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong commitNanos = new AtomicLong();
+    private long completed;
+    private volatile long lastCommitTime = System.currentTimeMillis();
+    private volatile long lastCommitRows;
+    private volatile long lastCommitGeneration;
+    private ScheduledFuture<?> check;
+
+    public CommitScheduler(RowIndex rowIndex, Properties properties) {
+        this.rowIndex = rowIndex;
+        this.properties = properties;
+    }
+
+    public synchronized void start() {
+        if (check != null || !isScheduled()) return;
+        long interval = CHECK_INTERVAL;
+        if (properties.getCommitIntervalMillis() > 0) {
+            interval = Math.min(interval, properties.getCommitIntervalMillis());
+        }
+        check = executorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkAndCommit();
+                } catch (Exception e) {
+                    logger.error("Scheduled commit failed for " + rowIndex.indexName, e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (check != null) {
+            check.cancel(false);
+            check = null;
+        }
+    }
+
+    private boolean isScheduled() {
+        return properties.getCommitIntervalMillis() > 0 || properties.getCommitMaxDocs() > 0 || properties.getCommitMaxRamMB() > 0;
+    }
+
+    void checkAndCommit() {
+        IndexContainer indexContainer = rowIndex.indexContainer;
+        if (indexContainer == null) return;
+        if (rowIndex.rowIndexSupport.generations.writeGeneration() == lastCommitGeneration) return;
+        boolean due = properties.getCommitIntervalMillis() > 0
+                && System.currentTimeMillis() - lastCommitTime >= properties.getCommitIntervalMillis();
+        if (!due && properties.getCommitMaxDocs() > 0) {
+            due = indexContainer.rowCount() - lastCommitRows >= properties.getCommitMaxDocs();
+        }
+        if (!due && properties.getCommitMaxRamMB() > 0) {
+            due = indexContainer.liveSize() >= properties.getCommitMaxRamMB() * 1024 * 1024;
+        }
+        if (due) commit();
+    }
+
+    /**
+     * Commits the index, unless a commit which started after this call has already completed.
+     */
+    public void commit() {
+        long request = requests.incrementAndGet();
+        synchronized (this) {
+            if (completed >= request) return;
+            long covered = requests.get();
+            IndexContainer indexContainer = rowIndex.indexContainer;
+            long rows = (indexContainer == null) ? 0 : indexContainer.rowCount();
+            long generation = rowIndex.rowIndexSupport.generations.writeGeneration();
+            long start = System.nanoTime();
+            boolean committed = rowIndex.commit();
+            long time = System.nanoTime() - start;
+            completed = covered;
+            lastCommitTime = System.currentTimeMillis();
+            lastCommitRows = rows;
+            if (!committed) return;
+            lastCommitGeneration = generation;
+            commits.incrementAndGet();
+            commitNanos.addAndGet(time);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Committed index {} in {} ms", rowIndex.indexName, TimeUnit.NANOSECONDS.toMillis(time));
+            }
+        }
+    }
+
+    public long commits() {
+        return commits.get();
+    }
+
+    public long commitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(commitNanos.get());
+    }
+}
@@ -52,6 +52,40 @@ public class Fields {
         return null;
     }
 
+    /**
+     * @return true if the doc values {@link #docValueField} writes for the type hold the exact value. Decimals and
+     * varints are written as doubles and longs, and most other types by a string form which cannot be parsed back.
+     */
+    public static boolean isReadableFromDocValue(AbstractType<?> type, FieldType docValueType) {
+        CQL3Type cqlType = type.asCQL3Type();
+        if (docValueType.numericType() != null) return hasNumericDocValue(type);
+        return cqlType == CQL3Type.Native.TEXT || cqlType == CQL3Type.Native.VARCHAR || cqlType == CQL3Type.Native.ASCII
+                || cqlType == CQL3Type.Native.UUID || cqlType == CQL3Type.Native.TIMEUUID || cqlType == CQL3Type.Native.BOOLEAN;
+    }
+
+    public static boolean hasNumericDocValue(AbstractType<?> type) {
+        CQL3Type cqlType = type.asCQL3Type();
+        return cqlType == CQL3Type.Native.INT || cqlType == CQL3Type.Native.BIGINT || cqlType == CQL3Type.Native.FLOAT
+                || cqlType == CQL3Type.Native.DOUBLE || cqlType == CQL3Type.Native.TIMESTAMP;
+    }
+
+    public static ByteBuffer fromNumericDocValue(AbstractType<?> type, long value) {
+        CQL3Type cqlType = type.asCQL3Type();
+        if (cqlType == CQL3Type.Native.INT) {
+            return ByteBufferUtil.bytes((int) value);
+        } else if (cqlType == CQL3Type.Native.FLOAT) {
+            return ByteBufferUtil.bytes(Float.intBitsToFloat((int) value));
+        } else if (cqlType == CQL3Type.Native.DOUBLE) {
+            return ByteBufferUtil.bytes(Double.longBitsToDouble(value));
+        } else {
+            return ByteBufferUtil.bytes(value);
+        }
+    }
+
+    public static ByteBuffer fromStringDocValue(AbstractType<?> type, String value) {
+        return type.fromString(value);
+    }
+
     public static ByteBuffer defaultValue(AbstractType type) {
         return defaultValue(type, true);
     }
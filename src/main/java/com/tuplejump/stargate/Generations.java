@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User: satya
+ * Write and read generations of an index.
+ * Rows are counted as writes when published for indexing and as reads once they are in the index,
+ * so that a search can wait for the rows written to its index before it.
+ */
+public class Generations {
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+
+    /**
+     * @return the new write generation.
+     */
+    public long written() {
+        return writes.incrementAndGet();
+    }
+
+    /**
+     * Moves the read generation past rows which are now in the index and wakes up the threads waiting on it.
+     *
+     * @return the new read generation.
+     */
+    public long read(long rows) {
+        long readGen = reads.addAndGet(rows);
+        synchronized (this) {
+            notifyAll();
+        }
+        return readGen;
+    }
+
+    /**
+     * Blocks until the read generation reaches the given generation or the timeout elapses.
+     *
+     * @return true if the generation was reached.
+     */
+    public boolean await(long generation, long timeoutMillis) throws InterruptedException {
+        if (reads.get() >= generation) return true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (this) {
+            while (reads.get() < generation) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+        return true;
+    }
+
+    public long writeGeneration() {
+        return writes.get();
+    }
+
+    public long readGeneration() {
+        return reads.get();
+    }
+}
@@ -3,6 +3,7 @@ package com.tuplejump.stargate;
 import com.tuplejump.stargate.lucene.Indexer;
 import com.tuplejump.stargate.lucene.SearcherCallback;
 import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
 import org.apache.cassandra.dht.Range;
 import org.apache.cassandra.dht.Token;
 
@@ -11,13 +12,24 @@ import java.util.Collection;
 public interface IndexContainer {
     public static final String INDEX_RECORDS = "index-num-records";
 
-    void updateIndexers(Collection<Range<Token>> ranges);
+    /**
+     * @param ranges the token ranges to index, or null to open the indexers on disk.
+     * @return true if indexers were added or removed.
+     */
+    boolean updateIndexers(Collection<Range<Token>> ranges);
 
     <T> T search(SearcherCallback<T> searcherCallback);
 
+    /**
+     * @return the indexer for the key, or null if the key is in a token range this container does not index.
+     */
     Indexer indexer(DecoratedKey decoratedKey);
 
-    void commit();
+    void commit(ReplayPosition position);
+
+    ReplayPosition committedPosition();
+
+    void forceMerge(int maxSegments);
 
     void close();
 
@@ -32,4 +44,9 @@ public interface IndexContainer {
     void truncate(long l);
 
     String indexName();
+
+    /**
+     * @return the hits of the query cache used by the searchers of this container.
+     */
+    long queryCacheHits();
 }
@@ -28,6 +28,7 @@ import java.nio.ByteBuffer;
 public class IndexEntryEvent implements Serializable {
     private ByteBuffer rowKey;
     private ColumnFamily columnFamily;
+    private int worker;
 
     public IndexEntryEvent() {
     }
@@ -37,6 +38,18 @@ public class IndexEntryEvent implements Serializable {
         this.columnFamily = columnFamily;
     }
 
+    public void setData(ByteBuffer rowKey, ColumnFamily columnFamily, int worker) {
+        setData(rowKey, columnFamily);
+        this.worker = worker;
+    }
+
+    /**
+     * @return the ordinal of the handler which owns this event.
+     */
+    public int getWorker() {
+        return worker;
+    }
+
     public ByteBuffer getRowKey() {
         return rowKey;
     }
@@ -2,11 +2,15 @@ package com.tuplejump.stargate;
 
 import com.lmax.disruptor.EventHandler;
 import com.tuplejump.stargate.cassandra.RowIndexSupport;
+import com.tuplejump.stargate.lucene.IndexBatch;
+import com.tuplejump.stargate.lucene.Indexer;
 import org.apache.cassandra.db.ColumnFamily;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
 
 public class IndexEventHandler implements EventHandler<IndexEntryEvent> {
     protected static final Logger logger = LoggerFactory.getLogger(IndexEventHandler.class);
@@ -14,6 +18,9 @@ public class IndexEventHandler implements EventHandler<IndexEntryEvent> {
     private final IndexingService indexingService;
     private final long ordinal;
     private final long numberOfConsumers;
+    private final Map<Indexer, IndexBatch> batches = new HashMap<>();
+    private final Map<RowIndexSupport, Integer> pendingRows = new HashMap<>();
+    private int pending;
 
     public IndexEventHandler(IndexingService indexingService, final long ordinal, final long numberOfConsumers) {
         this.indexingService = indexingService;
@@ -23,23 +30,49 @@ public class IndexEventHandler implements EventHandler<IndexEntryEvent> {
 
     @Override
     public void onEvent(IndexEntryEvent event, long sequence, boolean endOfBatch) throws Exception {
-        if ((sequence % numberOfConsumers) == ordinal) {
+        if (event.getWorker() == ordinal) {
             ByteBuffer rowkeyBuffer = event.getRowKey();
             ColumnFamily columnFamily = event.getColumnFamily();
             final RowIndexSupport rowIndexSupport = indexingService.support.get(columnFamily.metadata().cfName);
             try {
-                rowIndexSupport.indexRow(rowkeyBuffer, columnFamily);
+                //the index may have been dropped after the row was published
+                if (rowIndexSupport != null) rowIndexSupport.indexRow(rowkeyBuffer, columnFamily, batches);
             } catch (Exception e) {
                 logger.error("Error occurred while indexing row of [" + columnFamily.metadata().cfName + "]", e);
             } finally {
                 event.setData(null, null);
-                long readGen = indexingService.reads.incrementAndGet();
-                if (logger.isDebugEnabled())
-                    logger.debug("Read gen:" + readGen);
-
+                if (rowIndexSupport != null) {
+                    Integer rows = pendingRows.get(rowIndexSupport);
+                    pendingRows.put(rowIndexSupport, rows == null ? 1 : rows + 1);
+                }
+                pending++;
             }
+        }
+        if (endOfBatch || pending >= IndexingService.MAX_BATCH_SIZE) {
+            flush();
+        }
+    }
 
-
+    /**
+     * Applies the held back writes. The read generations only move past the rows once they are in the index.
+     */
+    private void flush() {
+        if (pending == 0) return;
+        for (IndexBatch batch : batches.values()) {
+            try {
+                batch.flush();
+            } catch (Exception e) {
+                logger.error("Error occurred while writing batch of [" + batch.size() + "] index writes", e);
+            }
+        }
+        batches.clear();
+        for (Map.Entry<RowIndexSupport, Integer> rows : pendingRows.entrySet()) {
+            rows.getKey().generations.read(rows.getValue());
         }
+        pendingRows.clear();
+        long readGen = indexingService.reads.addAndGet(pending);
+        pending = 0;
+        if (logger.isDebugEnabled())
+            logger.debug("Read gen:" + readGen);
     }
 }
@@ -23,11 +23,17 @@ import com.lmax.disruptor.RingBuffer;
 import com.lmax.disruptor.dsl.Disruptor;
 import com.tuplejump.stargate.cassandra.RowIndexSupport;
 import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.FBUtilities;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -39,6 +45,10 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class IndexingService {
     protected static final Logger logger = LoggerFactory.getLogger(Stargate.class);
+    /**
+     * The number of rows a worker indexes before writing them, if the ring buffer does not run out of rows first.
+     */
+    public static final int MAX_BATCH_SIZE = Integer.getInteger("sg.index.batch.size", 1000);
     ExecutorService executorService;
     Map<String, RowIndexSupport> support;
 
@@ -84,13 +94,19 @@ public class IndexingService {
             // Get the entry in the Disruptor
             // for the sequence
             IndexEntryEvent event = ringBuffer.get(sequence);
-            event.setData(rowkeyBuffer, columnFamily);
+            event.setData(rowkeyBuffer, columnFamily, worker(rowkeyBuffer));
         } finally {
             ringBuffer.publish(sequence);
         }
 
     }
 
+    /**
+     * Routes all updates of a partition to the same worker, so that they are indexed in the order they were published.
+     */
+    int worker(ByteBuffer rowkeyBuffer) {
+        return (rowkeyBuffer.hashCode() & Integer.MAX_VALUE) % numWorkers;
+    }
 
     public void updateAllIndexers() {
         for (RowIndexSupport rowIndexSupport : support.values()) {
@@ -98,16 +114,20 @@ public class IndexingService {
         }
     }
 
+    /**
+     * Deferred writes are only applied when indexers were added or removed.
+     */
     public void updateIndexers(RowIndexSupport rowIndexSupport) {
-        if (rowIndexSupport.indexContainer instanceof MonolithIndexContainer) {
-            rowIndexSupport.indexContainer.updateIndexers(null);
+        boolean changed;
+        if (rowIndexSupport.indexContainer instanceof PerVNodeIndexContainer && StorageService.instance.isInitialized()) {
+            //pending ranges receive writes before they are owned
+            List<Range<Token>> ranges = new ArrayList<>(StorageService.instance.getLocalRanges(rowIndexSupport.keyspace));
+            ranges.addAll(StorageService.instance.getTokenMetadata().getPendingRanges(rowIndexSupport.keyspace, FBUtilities.getBroadcastAddress()));
+            changed = rowIndexSupport.indexContainer.updateIndexers(ranges);
         } else {
-            throw new RuntimeException("VNodeIndexContainer is a WIP and has been disabled.");
-//            if (StorageService.instance.isInitialized()) {
-//                Collection<Range<Token>> ranges = StorageService.instance.getLocalRanges(rowIndexSupport.keyspace);
-//                rowIndexSupport.indexContainer.updateIndexers(ranges);
-//            }
+            changed = rowIndexSupport.indexContainer.updateIndexers(null);
         }
+        if (changed) rowIndexSupport.applyDeferredWrites();
     }
 
     private class FatalExceptionHandler implements ExceptionHandler {
@@ -1,12 +1,14 @@
 package com.tuplejump.stargate;
 
 import com.tuplejump.stargate.lucene.BasicIndexer;
+import com.tuplejump.stargate.lucene.CachingSearcherFactory;
 import com.tuplejump.stargate.lucene.Indexer;
+import com.tuplejump.stargate.lucene.Options;
 import com.tuplejump.stargate.lucene.SearcherCallback;
 import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
 import org.apache.cassandra.dht.Range;
 import org.apache.cassandra.dht.Token;
-import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.search.IndexSearcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,29 +19,33 @@ import java.util.concurrent.atomic.AtomicLong;
 public class MonolithIndexContainer implements IndexContainer {
     protected static final Logger logger = LoggerFactory.getLogger(RowIndex.class);
     Indexer indexer;
-    Analyzer analyzer;
+    Options options;
+    CachingSearcherFactory searcherFactory;
     String keyspace;
     String cf;
     String indexName;
 
 
-    public MonolithIndexContainer(Analyzer analyzer, String keyspace, String cf, String indexName) {
-        this.analyzer = analyzer;
+    public MonolithIndexContainer(Options options, String keyspace, String cf, String indexName) {
+        this.options = options;
+        this.searcherFactory = new CachingSearcherFactory(options.primary);
         this.keyspace = keyspace;
         this.cf = cf;
         this.indexName = indexName;
     }
 
     @Override
-    public void updateIndexers(Collection<Range<Token>> ranges) {
+    public boolean updateIndexers(Collection<Range<Token>> ranges) {
         if (indexer == null) {
             if (logger.isInfoEnabled()) {
                 logger.info("Adding Monolith indexer");
             }
             String rangeStr = "allVNodes";
             AtomicLong records = Stargate.getInstance().getAtomicLong(INDEX_RECORDS + "-" + indexName + "-" + rangeStr);
-            indexer = new BasicIndexer(records, analyzer, keyspace, cf, indexName, rangeStr);
+            indexer = new BasicIndexer(records, options, searcherFactory, keyspace, cf, indexName, rangeStr);
+            return true;
         }
+        return false;
     }
 
     @Override
@@ -60,9 +66,18 @@ public class MonolithIndexContainer implements IndexContainer {
     }
 
     @Override
-    public void commit() {
-        indexer.commit();
+    public void commit(ReplayPosition position) {
+        indexer.commit(position);
+    }
+
+    @Override
+    public void forceMerge(int maxSegments) {
+        indexer.forceMerge(maxSegments);
+    }
 
+    @Override
+    public ReplayPosition committedPosition() {
+        return (indexer == null) ? ReplayPosition.NONE : indexer.committedPosition();
     }
 
     @Override
@@ -101,4 +116,9 @@ public class MonolithIndexContainer implements IndexContainer {
         return indexName;
     }
 
+    @Override
+    public long queryCacheHits() {
+        return searcherFactory.queryCacheHits();
+    }
+
 }
@@ -17,22 +17,26 @@
 package com.tuplejump.stargate;
 
 import com.tuplejump.stargate.lucene.BasicIndexer;
+import com.tuplejump.stargate.lucene.CachingSearcherFactory;
 import com.tuplejump.stargate.lucene.Indexer;
+import com.tuplejump.stargate.lucene.Options;
+import com.tuplejump.stargate.lucene.ParallelSearcher;
 import com.tuplejump.stargate.lucene.SearcherCallback;
 import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
 import org.apache.cassandra.dht.Range;
 import org.apache.cassandra.dht.Token;
-import org.apache.lucene.analysis.Analyzer;
+import org.apache.cassandra.service.StorageService;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.search.IndexSearcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -40,90 +44,166 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * User: satya
+ * A container with one indexer per token range owned by this node.
+ * Token restricted searches only search the indexers of the ranges they touch,
+ * and an index for a range which is no longer owned is dropped by deleting its directory.
  */
 public class PerVNodeIndexContainer implements IndexContainer {
 
     protected static final Logger logger = LoggerFactory.getLogger(RowIndex.class);
-    static ExecutorService executorService = Executors.newFixedThreadPool(10);
-    Map<Range<Token>, Indexer> indexers = new HashMap<>();
+    static final String RANGE_SEPARATOR = "_";
+    Map<Range<Token>, Indexer> indexers = new ConcurrentHashMap<>();
     private ReadWriteLock indexLock = new ReentrantReadWriteLock();
+    private final Lock readLock = indexLock.readLock();
     private final Lock writeLock = indexLock.writeLock();
-    Analyzer analyzer;
+    Options options;
+    CachingSearcherFactory searcherFactory;
     String keyspace;
     String cf;
     String indexName;
 
-    public PerVNodeIndexContainer(Analyzer analyzer, String keyspace, String cf, String indexName) {
-        indexers = new HashMap<>();
-        this.analyzer = analyzer;
+    public PerVNodeIndexContainer(Options options, String keyspace, String cf, String indexName) {
+        indexers = new ConcurrentHashMap<>();
+        this.options = options;
+        this.searcherFactory = new CachingSearcherFactory(options.primary);
         this.keyspace = keyspace;
         this.cf = cf;
         this.indexName = indexName;
     }
 
+    /**
+     * Creates indexers for the parts of the given ranges which have none, and removes the indexers
+     * (and their directories) of ranges which are no longer owned at all.
+     * Indexers of ranges which are still partly owned are kept, nodetool cleanup deletes their extra rows.
+     * With null ranges the ring is not known yet, so the range indexes already on disk are opened.
+     */
     @Override
-    public void updateIndexers(Collection<Range<Token>> ranges) {
+    public boolean updateIndexers(Collection<Range<Token>> ranges) {
         writeLock.lock();
         Boolean isInfoLoggingEnabled = logger.isInfoEnabled();
         try {
-            if (indexers.isEmpty()) {
-                if (isInfoLoggingEnabled) {
-                    logger.info("Adding VNode indexers");
+            if (ranges == null) {
+                if (!indexers.isEmpty()) return false;
+                for (Range<Token> range : existingRanges()) {
+                    addIndexer(range);
                 }
-
-                for (Range<Token> range : ranges) {
-                    String rangeStr = range.left.toString();
-                    AtomicLong records = Stargate.getInstance().getAtomicLong(INDEX_RECORDS + "-" + indexName + "-" + rangeStr);
-                    Indexer indexer = new BasicIndexer(records, analyzer, keyspace, cf, indexName, rangeStr);
-                    indexers.put(range, indexer);
-                    if (isInfoLoggingEnabled) {
-                        logger.info("Added VNode indexers for range {}", range);
-                    }
+                return !indexers.isEmpty();
+            }
+            Map<Range<Token>, Indexer> indexersToRemove = new HashMap<>();
+            for (Map.Entry<Range<Token>, Indexer> entry : indexers.entrySet()) {
+                if (!intersectsAny(entry.getKey(), ranges)) indexersToRemove.put(entry.getKey(), entry.getValue());
+            }
+            boolean uncovered = false;
+            for (Range<Token> range : ranges) {
+                if (!uncovered(range).isEmpty()) {
+                    uncovered = true;
+                    break;
                 }
-            } else {
+            }
+            if (indexersToRemove.isEmpty() && !uncovered) return false;
+            if (isInfoLoggingEnabled) {
+                logger.info("Change in VNode indexers");
+            }
+            for (Map.Entry<Range<Token>, Indexer> entry : indexersToRemove.entrySet()) {
                 if (isInfoLoggingEnabled) {
-                    logger.info("Change in VNode indexers");
+                    logger.info("Removing indexer for range {}", entry.getKey());
                 }
-                HashMap<Range<Token>, Indexer> indexersToRemove = new HashMap<>(indexers);
-                for (Range<Token> range : ranges) {
-                    indexersToRemove.remove(range);
+                indexers.remove(entry.getKey());
+                entry.getValue().removeIndex();
+                if (isInfoLoggingEnabled) {
+                    logger.info("Removed indexer for range {}", entry.getKey());
                 }
-                for (Map.Entry<Range<Token>, Indexer> entry : indexersToRemove.entrySet()) {
-                    if (isInfoLoggingEnabled) {
-                        logger.info("Removing indexer for range {}", entry.getKey());
-                    }
-                    Indexer indexer = indexers.remove(entry.getKey());
-                    indexer.removeIndex();
-                    if (isInfoLoggingEnabled) {
-                        logger.info("Removed indexer for range {}", entry.getKey());
-                    }
+            }
+            for (Range<Token> range : ranges) {
+                for (Range<Token> part : uncovered(range)) {
+                    addIndexer(part);
                 }
             }
+            return true;
         } finally {
             writeLock.unlock();
         }
     }
 
+    private void addIndexer(Range<Token> range) {
+        String rangeStr = rangeStr(range);
+        AtomicLong records = Stargate.getInstance().getAtomicLong(INDEX_RECORDS + "-" + indexName + "-" + rangeStr);
+        Indexer indexer = new BasicIndexer(records, options, searcherFactory, keyspace, cf, indexName, rangeStr);
+        indexers.put(range, indexer);
+        if (logger.isInfoEnabled()) {
+            logger.info("Added VNode indexer for range {}", range);
+        }
+    }
+
+    private Set<Range<Token>> uncovered(Range<Token> range) {
+        Set<Range<Token>> uncovered = Collections.singleton(range);
+        for (Range<Token> indexed : indexers.keySet()) {
+            Set<Range<Token>> remaining = new HashSet<>();
+            for (Range<Token> part : uncovered) {
+                remaining.addAll(part.subtract(indexed));
+            }
+            uncovered = remaining;
+        }
+        return uncovered;
+    }
+
+    private static boolean intersectsAny(Range<Token> range, Collection<Range<Token>> ranges) {
+        for (Range<Token> other : ranges) {
+            if (range.intersects(other)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Range indexes are stored in directories named left_right so that they can be opened before the ring is known.
+     */
+    private static String rangeStr(Range<Token> range) {
+        Token.TokenFactory tokenFactory = StorageService.getPartitioner().getTokenFactory();
+        return tokenFactory.toString(range.left) + RANGE_SEPARATOR + tokenFactory.toString(range.right);
+    }
+
+    private List<Range<Token>> existingRanges() {
+        List<Range<Token>> ranges = new ArrayList<>();
+        File tableDir = new File(Options.defaultIndexesDir + File.separator + keyspace + File.separator + cf);
+        File[] rangeDirs = tableDir.listFiles();
+        if (rangeDirs == null) return ranges;
+        Token.TokenFactory tokenFactory = StorageService.getPartitioner().getTokenFactory();
+        for (File rangeDir : rangeDirs) {
+            String[] tokens = rangeDir.getName().split(RANGE_SEPARATOR);
+            if (tokens.length != 2 || !new File(rangeDir, indexName).exists()) continue;
+            try {
+                ranges.add(new Range<>(tokenFactory.fromString(tokens[0]), tokenFactory.fromString(tokens[1])));
+            } catch (RuntimeException e) {
+                logger.warn("Ignoring index directory {} which is not a token range", rangeDir);
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Only the indexers of ranges which intersect the token range of the search are searched.
+     */
     @Override
     public <T> T search(SearcherCallback<T> searcherCallback) {
         List<IndexReader> indexReaders = new ArrayList<>();
         Map<Indexer, IndexSearcher> indexSearchers = new HashMap<>();
-        for (Map.Entry<Range<Token>, Indexer> entry : indexers.entrySet()) {
-            Range<Token> range = entry.getKey();
-            boolean intersects = intersects(searcherCallback.filterRange(), searcherCallback.isSingleToken(), searcherCallback.isFullRange(), range);
-            if (intersects) {
-                Indexer indexer = entry.getValue();
-                IndexSearcher searcher = indexer.acquire();
-                indexSearchers.put(indexer, searcher);
-                indexReaders.add(searcher.getIndexReader());
-            }
-        }
-        IndexReader[] indexReadersArr = new IndexReader[indexReaders.size()];
-        indexReaders.toArray(indexReadersArr);
         MultiReader multiReader = null;
+        readLock.lock();
         try {
+            for (Map.Entry<Range<Token>, Indexer> entry : indexers.entrySet()) {
+                Range<Token> range = entry.getKey();
+                boolean intersects = intersects(searcherCallback.filterRange(), searcherCallback.isSingleToken(), searcherCallback.isFullRange(), range);
+                if (intersects) {
+                    Indexer indexer = entry.getValue();
+                    IndexSearcher searcher = indexer.acquire();
+                    indexSearchers.put(indexer, searcher);
+                    indexReaders.add(searcher.getIndexReader());
+                }
+            }
+            IndexReader[] indexReadersArr = new IndexReader[indexReaders.size()];
+            indexReaders.toArray(indexReadersArr);
             multiReader = new MultiReader(indexReadersArr, false);
-            IndexSearcher allSearcher = new IndexSearcher(multiReader, executorService);
+            IndexSearcher allSearcher = searcherFactory.configure(new IndexSearcher(multiReader, ParallelSearcher.executorService));
             return searcherCallback.doWithSearcher(allSearcher);
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -136,6 +216,7 @@ public class PerVNodeIndexContainer implements IndexContainer {
             for (Map.Entry<Indexer, IndexSearcher> entry : indexSearchers.entrySet()) {
                 entry.getKey().release(entry.getValue());
             }
+            readLock.unlock();
         }
     }
 
@@ -151,19 +232,41 @@ public class PerVNodeIndexContainer implements IndexContainer {
 
     @Override
     public Indexer indexer(DecoratedKey decoratedKey) {
-        for (Map.Entry<Range<Token>, Indexer> entry : indexers.entrySet()) {
-            if (entry.getKey().contains(decoratedKey.getToken())) return entry.getValue();
+        readLock.lock();
+        try {
+            for (Map.Entry<Range<Token>, Indexer> entry : indexers.entrySet()) {
+                if (entry.getKey().contains(decoratedKey.getToken())) return entry.getValue();
+            }
+            return null;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void commit(ReplayPosition position) {
+        for (Indexer indexer : indexers.values()) {
+            indexer.commit(position);
         }
-        throw new IllegalStateException("No VNodeIndexer found for indexing key [" + decoratedKey + "]");
     }
 
     @Override
-    public void commit() {
+    public void forceMerge(int maxSegments) {
         for (Indexer indexer : indexers.values()) {
-            indexer.commit();
+            indexer.forceMerge(maxSegments);
         }
     }
 
+    @Override
+    public ReplayPosition committedPosition() {
+        ReplayPosition min = null;
+        for (Indexer indexer : indexers.values()) {
+            ReplayPosition position = indexer.committedPosition();
+            if (min == null || position.compareTo(min) < 0) min = position;
+        }
+        return min == null ? ReplayPosition.NONE : min;
+    }
+
     @Override
     public void close() {
         for (Indexer indexer : indexers.values()) {
@@ -225,4 +328,9 @@ public class PerVNodeIndexContainer implements IndexContainer {
         return indexName;
     }
 
+    @Override
+    public long queryCacheHits() {
+        return searcherFactory.queryCacheHits();
+    }
+
 }
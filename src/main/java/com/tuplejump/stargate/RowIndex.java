@@ -16,6 +16,7 @@
 
 package com.tuplejump.stargate;
 
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.tuplejump.stargate.cassandra.CassandraUtils;
 import com.tuplejump.stargate.cassandra.RowIndexSupport;
 import com.tuplejump.stargate.cassandra.SearchSupport;
@@ -26,21 +27,21 @@ import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.db.ColumnFamily;
 import org.apache.cassandra.db.ColumnFamilyStore;
 import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.commitlog.CommitLog;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
 import org.apache.cassandra.db.composites.CellName;
 import org.apache.cassandra.db.index.PerRowSecondaryIndex;
 import org.apache.cassandra.db.index.SecondaryIndexSearcher;
 import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.exceptions.ConfigurationException;
 import org.apache.cassandra.utils.concurrent.OpOrder;
-import org.apache.commons.collections.map.LRUMap;
 import org.apache.lucene.index.Term;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
-import java.util.Collections;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -52,6 +53,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class RowIndex extends PerRowSecondaryIndex {
     protected static final Logger logger = LoggerFactory.getLogger(RowIndex.class);
+    static final long INDEX_BUILT_POLL_INTERVAL = 50;
     protected ColumnDefinition columnDefinition;
     protected String keyspace;
     protected String indexName;
@@ -65,18 +67,21 @@ public class RowIndex extends PerRowSecondaryIndex {
     private final Lock readLock = indexLock.readLock();
     private final Lock writeLock = indexLock.writeLock();
     IndexContainer indexContainer;
+    CommitScheduler commitScheduler;
     boolean nearRealTime = false;
-    protected volatile long latest;
 
-    public Map<String, IndexEntryCollector> collectorMap = Collections.synchronizedMap(new LRUMap(10));
 
     public TableMapper getTableMapper() {
         return tableMapper;
     }
 
+    public RowIndexSupport getRowIndexSupport() {
+        return rowIndexSupport;
+    }
+
     @Override
     public void index(ByteBuffer rowKey, ColumnFamily cf) {
-        latest = Stargate.getInstance().publish(rowKey, cf);
+        Stargate.getInstance().publish(rowKey, cf);
     }
 
     @Override
@@ -89,7 +94,7 @@ public class RowIndex extends PerRowSecondaryIndex {
         try {
             AbstractType<?> rkValValidator = baseCfs.metadata.getKeyValidator();
             Term term = LuceneUtils.rowkeyTerm(rkValValidator.getString(key.getKey()));
-            indexContainer.indexer(key).delete(term);
+            rowIndexSupport.delete(key, term);
         } finally {
             readLock.unlock();
         }
@@ -98,7 +103,7 @@ public class RowIndex extends PerRowSecondaryIndex {
     public void delete(DecoratedKey decoratedKey, String pkString, Long ts) {
         readLock.lock();
         try {
-            indexContainer.indexer(decoratedKey).delete(LuceneUtils.primaryKeyTerm(pkString), LuceneUtils.tsTerm(ts));
+            rowIndexSupport.delete(decoratedKey, LuceneUtils.primaryKeyTerm(pkString), LuceneUtils.tsTerm(ts));
         } finally {
             readLock.unlock();
         }
@@ -120,13 +125,15 @@ public class RowIndex extends PerRowSecondaryIndex {
     }
 
     private void waitForIndexBuilt() {
-        while (true) {
-            //spin busy
-            //don't give the searcher out till this happens
-            if (isIndexBuilt(columnDefinition.name.bytes)) break;
+        //don't give the searcher out till this happens
+        while (!isIndexBuilt(columnDefinition.name.bytes)) {
+            if (logger.isDebugEnabled())
+                logger.debug("Waiting for index {} to be built", indexName);
+            Uninterruptibles.sleepUninterruptibly(INDEX_BUILT_POLL_INTERVAL, TimeUnit.MILLISECONDS);
         }
+        //the generations belong to the index support, so a re-initialized index does not wait for writes of the old one
         if (!nearRealTime)
-            Stargate.getInstance().catchUp(latest);
+            Stargate.getInstance().catchUp(rowIndexSupport.generations, rowIndexSupport.generations.writeGeneration());
     }
 
 
@@ -152,17 +159,20 @@ public class RowIndex extends PerRowSecondaryIndex {
             if (isInfoLoggingEnabled) {
                 logger.info("Creating new RowIndex for {}", indexName);
             }
-//            indexContainer = new PerVNodeIndexContainer(options.analyzer, keyspace, tableName, indexName);
-            indexContainer = new MonolithIndexContainer(options.analyzer, keyspace, tableName, indexName);
+            indexContainer = indexContainer();
             this.tableMapper = new TableMapper(baseCfs, options.primary.isMetaColumn(), columnDefinition);
-            rowIndexSupport = new RowIndexSupport(keyspace, indexContainer, options, tableMapper);
+            commitScheduler = new CommitScheduler(this, options.primary);
+            rowIndexSupport = new RowIndexSupport(keyspace, indexContainer, options, tableMapper, commitScheduler);
             Stargate.getInstance().register(rowIndexSupport);
+            checkCommittedPosition();
+            commitScheduler.start();
             Runtime.getRuntime().addShutdownHook(new Thread() {
                 @Override
                 public void run() {
                     if (isInfoLoggingEnabled) {
                         logger.info("Closing RowIndex for {}", indexName);
                     }
+                    commitScheduler.stop();
                     if (indexContainer != null)
                         indexContainer.close();
                 }
@@ -172,6 +182,29 @@ public class RowIndex extends PerRowSecondaryIndex {
         }
     }
 
+    /**
+     * Commit log replay only covers writes after the base table's last flush.
+     * An index whose last commit is behind that cannot be caught up by replay and needs a rebuild.
+     */
+    private void checkCommittedPosition() {
+        if (!isIndexBuilt(columnDefinition.name.bytes)) return;
+        ReplayPosition committed = indexContainer.committedPosition();
+        ReplayPosition flushed = ReplayPosition.getReplayPosition(baseCfs.getSSTables());
+        if (committed.compareTo(flushed) < 0) {
+            logger.warn("Index {} was committed at {} but {} is flushed up to {}. Writes in between are not replayed, rebuild the index if results are missing",
+                    indexName, committed, tableName, flushed);
+        }
+    }
+    private IndexContainer indexContainer() {
+        switch (options.primary.getContainer()) {
+            case sharded:
+                return new ShardedIndexContainer(options, keyspace, tableName, indexName);
+            case vnode:
+                return new PerVNodeIndexContainer(options, keyspace, tableName, indexName);
+            default:
+                return new MonolithIndexContainer(options, keyspace, tableName, indexName);
+        }
+    }
 
     @Override
     public void validateOptions() throws ConfigurationException {
@@ -203,15 +236,36 @@ public class RowIndex extends PerRowSecondaryIndex {
         return indexContainer.rowCount();
     }
 
+    /**
+     * Waits for indexing to catch up with the table's writes before committing, which can hold up the flush of
+     * the table for up to CATCH_UP_TIMEOUT ms.
+     */
     @Override
     public void forceBlockingFlush() {
+        commitScheduler.commit();
+    }
+
+    /**
+     * Commits the index if it is built.
+     *
+     * @return true if the index was committed.
+     */
+    boolean commit() {
         readLock.lock();
         try {
-            if (isIndexBuilt(columnDefinition.name.bytes)) {
+            if (indexContainer != null && isIndexBuilt(columnDefinition.name.bytes)) {
+                //everything before this position is in the base table sstables being flushed,
+                //so drain the ring buffer up to it before recording it with the lucene commit
+                ReplayPosition position = CommitLog.instance.getContext();
+                boolean caughtUp = Stargate.getInstance().catchUp(rowIndexSupport.generations, rowIndexSupport.generations.writeGeneration());
                 //flushes writes to the disk
                 //also refreshes readers
-                indexContainer.commit();
+                //rows before the position may not be indexed yet, so the last recorded position is kept and a restart
+                //before the next commit finds the index behind the table
+                indexContainer.commit(caughtUp ? position : null);
+                return true;
             }
+            return false;
         } finally {
             readLock.unlock();
         }
@@ -255,8 +309,11 @@ public class RowIndex extends PerRowSecondaryIndex {
             if (logger.isInfoEnabled()) {
                 logger.info("Removing All Indexers for {}", indexName);
             }
+            commitScheduler.stop();
             indexContainer.remove();
             indexContainer = null;
+            //cached searches hold queries built with the options of the removed index
+            rowIndexSupport.searchCache.invalidate();
             setIndexRemoved();
         } finally {
             writeLock.unlock();
@@ -0,0 +1,215 @@
+package com.tuplejump.stargate;
+
+import com.tuplejump.stargate.lucene.BasicIndexer;
+import com.tuplejump.stargate.lucene.CachingSearcherFactory;
+import com.tuplejump.stargate.lucene.Indexer;
+import com.tuplejump.stargate.lucene.Options;
+import com.tuplejump.stargate.lucene.ParallelSearcher;
+import com.tuplejump.stargate.lucene.SearcherCallback;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User: satya
+ * A container which hashes partition tokens across a fixed number of indexers,
+ * so that writes do not contend on one IndexWriter. Searches run over all shards through a MultiReader.
+ * The number of shards is fixed by the shard directories of an existing index, as rows would hash to other shards
+ * if it changed and leave their old docs behind.
+ */
+public class ShardedIndexContainer implements IndexContainer {
+    protected static final Logger logger = LoggerFactory.getLogger(RowIndex.class);
+    static final String SHARD_PREFIX = "shard";
+    Indexer[] indexers;
+    Options options;
+    CachingSearcherFactory searcherFactory;
+    String keyspace;
+    String cf;
+    String indexName;
+
+    public ShardedIndexContainer(Options options, String keyspace, String cf, String indexName) {
+        this.options = options;
+        this.searcherFactory = new CachingSearcherFactory(options.primary);
+        this.keyspace = keyspace;
+        this.cf = cf;
+        this.indexName = indexName;
+    }
+
+    @Override
+    public boolean updateIndexers(Collection<Range<Token>> ranges) {
+        if (indexers == null) {
+            int shards = shardCount();
+            if (logger.isInfoEnabled()) {
+                logger.info("Adding {} sharded indexers", shards);
+            }
+            Indexer[] shardIndexers = new Indexer[shards];
+            for (int i = 0; i < shards; i++) {
+                String shardStr = SHARD_PREFIX + i;
+                AtomicLong records = Stargate.getInstance().getAtomicLong(INDEX_RECORDS + "-" + indexName + "-" + shardStr);
+                shardIndexers[i] = new BasicIndexer(records, options, searcherFactory, keyspace, cf, indexName, shardStr);
+            }
+            indexers = shardIndexers;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * An index with shards on disk keeps their number, and fails if the shards option asks for another.
+     * A new index has the shards option, or half the available processors if it is not set.
+     */
+    int shardCount() {
+        int existing = existingShards();
+        int configured = options.primary.getShards();
+        if (existing > 0) {
+            if (configured > 0 && configured != existing)
+                throw new IllegalStateException(String.format("Index %s has %d shards on disk but the shards option is %d. Drop and recreate the index to change the number of shards",
+                        indexName, existing, configured));
+            return existing;
+        }
+        return configured > 0 ? configured : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    private int existingShards() {
+        File tableDir = new File(Options.defaultIndexesDir + File.separator + keyspace + File.separator + cf);
+        int shards = 0;
+        while (new File(new File(tableDir, SHARD_PREFIX + shards), indexName).exists()) shards++;
+        return shards;
+    }
+
+    @Override
+    public <T> T search(SearcherCallback<T> searcherCallback) {
+        IndexSearcher[] searchers = new IndexSearcher[indexers.length];
+        IndexReader[] readers = new IndexReader[indexers.length];
+        MultiReader multiReader = null;
+        try {
+            for (int i = 0; i < indexers.length; i++) {
+                searchers[i] = indexers[i].acquire();
+                readers[i] = searchers[i].getIndexReader();
+            }
+            multiReader = new MultiReader(readers, false);
+            return searcherCallback.doWithSearcher(searcherFactory.configure(new IndexSearcher(multiReader, ParallelSearcher.executorService)));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                if (multiReader != null) multiReader.close();
+            } catch (IOException e) {
+                logger.error("Could not close reader", e);
+            }
+            for (int i = 0; i < indexers.length; i++) {
+                if (searchers[i] != null) indexers[i].release(searchers[i]);
+            }
+        }
+    }
+
+    @Override
+    public Indexer indexer(DecoratedKey decoratedKey) {
+        return indexers[(decoratedKey.getToken().hashCode() & Integer.MAX_VALUE) % indexers.length];
+    }
+
+    @Override
+    public void commit(ReplayPosition position) {
+        for (Indexer indexer : indexers) {
+            indexer.commit(position);
+        }
+    }
+
+    @Override
+    public void forceMerge(int maxSegments) {
+        for (Indexer indexer : indexers) {
+            indexer.forceMerge(maxSegments);
+        }
+    }
+
+    @Override
+    public ReplayPosition committedPosition() {
+        if (indexers == null) return ReplayPosition.NONE;
+        ReplayPosition min = null;
+        for (Indexer indexer : indexers) {
+            ReplayPosition position = indexer.committedPosition();
+            if (min == null || position.compareTo(min) < 0) min = position;
+        }
+        return min;
+    }
+
+    @Override
+    public void close() {
+        for (Indexer indexer : indexers) {
+            indexer.close();
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        if (indexers == null) return size;
+        for (Indexer indexer : indexers) {
+            size += indexer.size();
+        }
+        return size;
+    }
+
+    @Override
+    public long liveSize() {
+        long size = 0;
+        if (indexers == null) return size;
+        for (Indexer indexer : indexers) {
+            size += indexer.liveSize();
+        }
+        return size;
+    }
+
+    @Override
+    public long rowCount() {
+        long size = 0;
+        if (indexers == null) return size;
+        for (Indexer indexer : indexers) {
+            size += indexer.approxRowCount();
+        }
+        return size;
+    }
+
+    @Override
+    public void remove() {
+        for (Indexer indexer : indexers) {
+            indexer.removeIndex();
+        }
+    }
+
+    @Override
+    public void truncate(long l) {
+        for (Indexer indexer : indexers) {
+            indexer.truncate(l);
+        }
+    }
+
+    @Override
+    public String indexName() {
+        return indexName;
+    }
+
+    @Override
+    public long queryCacheHits() {
+        return searcherFactory.queryCacheHits();
+    }
+
+    public String[] shardNames() {
+        String[] shardNames = new String[indexers.length];
+        for (int i = 0; i < indexers.length; i++) {
+            shardNames[i] = SHARD_PREFIX + i;
+        }
+        return shardNames;
+    }
+}
@@ -17,12 +17,17 @@
 package com.tuplejump.stargate;
 
 import com.tuplejump.stargate.cassandra.RowIndexSupport;
+import com.tuplejump.stargate.lucene.LuceneUtils;
+import com.tuplejump.stargate.lucene.ParallelSearcher;
+import com.tuplejump.stargate.lucene.SearcherCallback;
 import org.apache.cassandra.db.ColumnFamily;
 import org.apache.cassandra.dht.Range;
 import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.gms.*;
 import org.apache.cassandra.service.StorageService;
-import org.apache.cassandra.utils.FBUtilities;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortingMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,6 +39,7 @@ import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -53,8 +59,11 @@ public class Stargate implements IEndpointStateChangeSubscriber, StargateMBean {
     }
 
     public static final String COMMIT_LOGS = "commit-logs";
+    public static final long CATCH_UP_TIMEOUT = Long.getLong("sg.catchup.timeout.ms", 10000);
     public static Exception constructionException;
     IndexingService indexingService;
+    final AtomicLong catchUpWaitNanos = new AtomicLong();
+    final AtomicLong catchUpTimeouts = new AtomicLong();
 
     private Stargate() {
         try {
@@ -79,34 +88,69 @@ public class Stargate implements IEndpointStateChangeSubscriber, StargateMBean {
         indexingService.updateIndexers(rowIndexSupport);
     }
 
+    public void updateIndexers(RowIndexSupport rowIndexSupport) {
+        indexingService.updateIndexers(rowIndexSupport);
+    }
+
     public long index(ByteBuffer rowKey, ColumnFamily columnFamily) {
         final RowIndexSupport rowIndexSupport = indexingService.support.get(columnFamily.metadata().cfName);
+        if (rowIndexSupport == null) return 0;
         try {
             rowIndexSupport.indexRow(rowKey, columnFamily);
         } catch (Exception e) {
             logger.error("Error occurred while indexing row of [" + columnFamily.metadata().cfName + "]", e);
         } finally {
+            rowIndexSupport.generations.read(1);
             indexingService.reads.incrementAndGet();
         }
-        long writeGen = indexingService.writes.incrementAndGet();
+        indexingService.writes.incrementAndGet();
+        long writeGen = rowIndexSupport.generations.written();
         if (logger.isDebugEnabled())
             logger.debug("Write gen:" + writeGen);
         return writeGen;
     }
 
 
+    /**
+     * @return the write generation of the row's index after this row, or 0 if the table has no registered index.
+     */
     public long publish(ByteBuffer rowKey, ColumnFamily columnFamily) {
+        final RowIndexSupport rowIndexSupport = indexingService.support.get(columnFamily.metadata().cfName);
+        if (rowIndexSupport == null) {
+            if (logger.isDebugEnabled())
+                logger.debug("No index registered for [" + columnFamily.metadata().cfName + "], skipping row");
+            return 0;
+        }
         indexingService.index(rowKey, columnFamily);
-        long writeGen = indexingService.writes.incrementAndGet();
+        indexingService.writes.incrementAndGet();
+        long writeGen = rowIndexSupport.generations.written();
         if (logger.isDebugEnabled())
             logger.debug("Write gen:" + writeGen);
         return writeGen;
     }
 
 
-    public void catchUp(long latest) {
-        while (true) {
-            if (indexingService.reads.get() >= latest) break;
+    /**
+     * Waits till the rows published to an index up to the given write generation are indexed, or for at most
+     * CATCH_UP_TIMEOUT ms.
+     *
+     * @return true if the rows up to the write generation are indexed.
+     */
+    public boolean catchUp(Generations generations, long latest) {
+        if (generations.readGeneration() >= latest) return true;
+        long start = System.nanoTime();
+        try {
+            if (!generations.await(latest, CATCH_UP_TIMEOUT)) {
+                catchUpTimeouts.incrementAndGet();
+                logger.warn("Indexing did not catch up with write generation [" + latest + "] in [" + CATCH_UP_TIMEOUT + "] ms. Continuing with read generation [" + generations.readGeneration() + "]");
+                return false;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            catchUpWaitNanos.addAndGet(System.nanoTime() - start);
         }
     }
 
@@ -121,7 +165,8 @@ public class Stargate implements IEndpointStateChangeSubscriber, StargateMBean {
 
     @Override
     public void onChange(InetAddress endpoint, ApplicationState state, VersionedValue value) {
-        if (state == ApplicationState.TOKENS && FBUtilities.getBroadcastAddress().equals(endpoint)) {
+        //the status of a peer moves ranges to it or from it, as when a bootstrapping peer becomes normal
+        if (state == ApplicationState.TOKENS || state == ApplicationState.STATUS) {
             indexingService.updateAllIndexers();
         }
     }
@@ -136,6 +181,7 @@ public class Stargate implements IEndpointStateChangeSubscriber, StargateMBean {
 
     @Override
     public void onRemove(InetAddress endpoint) {
+        indexingService.updateAllIndexers();
     }
 
     @Override
@@ -167,6 +213,9 @@ public class Stargate implements IEndpointStateChangeSubscriber, StargateMBean {
             }
             return indexRanges;
         }
+        if (indexSupport != null && indexSupport.indexContainer instanceof ShardedIndexContainer) {
+            return ((ShardedIndexContainer) indexSupport.indexContainer).shardNames();
+        }
         return new String[]{""};
     }
 
@@ -215,5 +264,140 @@ public class Stargate implements IEndpointStateChangeSubscriber, StargateMBean {
         return indexingService.reads.get();
     }
 
+    @Override
+    public long indexWriteGeneration(String indexName) {
+        RowIndexSupport indexSupport = getRowIndexSupportByIndexName(indexName);
+        if (indexSupport != null) {
+            return indexSupport.generations.writeGeneration();
+        }
+        return 0;
+    }
+
+    @Override
+    public long indexReadGeneration(String indexName) {
+        RowIndexSupport indexSupport = getRowIndexSupportByIndexName(indexName);
+        if (indexSupport != null) {
+            return indexSupport.generations.readGeneration();
+        }
+        return 0;
+    }
+
+    @Override
+    public long indexCommits(String indexName) {
+        RowIndexSupport indexSupport = getRowIndexSupportByIndexName(indexName);
+        if (indexSupport != null) {
+            return indexSupport.commitScheduler.commits();
+        }
+        return 0;
+    }
+
+    @Override
+    public void forceMerge(String indexName, int maxSegments) {
+        RowIndexSupport indexSupport = getRowIndexSupportByIndexName(indexName);
+        if (indexSupport != null) {
+            indexSupport.indexContainer.forceMerge(maxSegments);
+        }
+    }
+
+    @Override
+    public long indexSortedSegments(String indexName) {
+        RowIndexSupport indexSupport = getRowIndexSupportByIndexName(indexName);
+        if (indexSupport == null) return 0;
+        return indexSupport.indexContainer.search(new SearcherCallback<Long>() {
+            @Override
+            public Long doWithSearcher(IndexSearcher searcher) throws Exception {
+                long sorted = 0;
+                for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+                    if (SortingMergePolicy.isSorted(leaf.reader(), LuceneUtils.INDEX_SORT)) sorted++;
+                }
+                return sorted;
+            }
+
+            @Override
+            public Range<Token> filterRange() {
+                return null;
+            }
+
+            @Override
+            public boolean isSingleToken() {
+                return false;
+            }
+
+            @Override
+            public boolean isFullRange() {
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public long indexResultCacheHits(String indexName) {
+        RowIndexSupport indexSupport = getRowIndexSupportByIndexName(indexName);
+        if (indexSupport != null) {
+            return indexSupport.resultCache.hits();
+        }
+        return 0;
+    }
+
+    @Override
+    public long indexResultCacheMisses(String indexName) {
+        RowIndexSupport indexSupport = getRowIndexSupportByIndexName(indexName);
+        if (indexSupport != null) {
+            return indexSupport.resultCache.misses();
+        }
+        return 0;
+    }
+
+    @Override
+    public long indexSearchCacheHits(String indexName) {
+        RowIndexSupport indexSupport = getRowIndexSupportByIndexName(indexName);
+        if (indexSupport != null) {
+            return indexSupport.searchCache.hits();
+        }
+        return 0;
+    }
+
+    @Override
+    public long indexSearchCacheMisses(String indexName) {
+        RowIndexSupport indexSupport = getRowIndexSupportByIndexName(indexName);
+        if (indexSupport != null) {
+            return indexSupport.searchCache.misses();
+        }
+        return 0;
+    }
+
+    @Override
+    public long indexQueryCacheHits(String indexName) {
+        RowIndexSupport indexSupport = getRowIndexSupportByIndexName(indexName);
+        if (indexSupport != null) {
+            return indexSupport.indexContainer.queryCacheHits();
+        }
+        return 0;
+    }
+
+    @Override
+    public long indexCommitMillis(String indexName) {
+        RowIndexSupport indexSupport = getRowIndexSupportByIndexName(indexName);
+        if (indexSupport != null) {
+            return indexSupport.commitScheduler.commitMillis();
+        }
+        return 0;
+    }
+
+    @Override
+    public long catchUpWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(catchUpWaitNanos.get());
+    }
+
+    @Override
+    public long catchUpTimeouts() {
+        return catchUpTimeouts.get();
+    }
+
+    @Override
+    public long slicedSearches() {
+        return ParallelSearcher.slicedSearches();
+    }
+
 
 }
@@ -39,5 +39,48 @@ public interface StargateMBean {
 
     public long readGeneration();
 
+    public long indexWriteGeneration(String indexName);
+
+    public long indexReadGeneration(String indexName);
+
+    public long indexCommits(String indexName);
+
+    /**
+     * Merges each index of the given index down to at most maxSegments segments.
+     */
+    public void forceMerge(String indexName, int maxSegments);
+
+    /**
+     * @return the number of segments of the index which are sorted by the index sort.
+     */
+    public long indexSortedSegments(String indexName);
+
+    public long indexResultCacheHits(String indexName);
+
+    public long indexResultCacheMisses(String indexName);
+
+    public long indexSearchCacheHits(String indexName);
+
+    public long indexSearchCacheMisses(String indexName);
+
+    public long indexQueryCacheHits(String indexName);
+
+    /**
+     * @return the total time spent committing the index.
+     */
+    public long indexCommitMillis(String indexName);
+
+    /**
+     * @return the total time searches have waited for indexing to catch up with writes.
+     */
+    public long catchUpWaitMillis();
+
+    public long catchUpTimeouts();
+
+    /**
+     * @return the number of searches which were split into more than one slice, see sg.search.slice.docs.
+     */
+    public long slicedSearches();
+
 
 }
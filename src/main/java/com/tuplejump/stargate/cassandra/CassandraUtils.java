@@ -47,6 +47,7 @@ public class CassandraUtils {
     public static Options getOptions(String columnName, ColumnFamilyStore baseCfs, String json) {
         try {
             Properties mapping = Options.inputMapper.readValue(json, Properties.class);
+            mapping.validate();
             return getOptions(mapping, baseCfs, columnName);
 
         } catch (IOException e) {
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.apache.cassandra.db.Row;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User: satya
+ * A cache of search results by the normalized search and the index reader they were read from.
+ * Searches over different readers, such as the token range searches of a vnode index, keep their own entries.
+ * Entries of refreshed readers are never matched again and are evicted as the least recently used.
+ */
+public class ResultCache {
+    private static final ObjectMapper jsonMapper = new ObjectMapper();
+
+    static {
+        jsonMapper.configure(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES, true);
+        jsonMapper.configure(JsonParser.Feature.ALLOW_COMMENTS, true);
+        jsonMapper.configure(JsonParser.Feature.ALLOW_SINGLE_QUOTES, true);
+    }
+
+    private final Cache<Key, Entry> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ResultCache(double maxMB) {
+        if (maxMB > 0) {
+            cache = CacheBuilder.newBuilder().maximumWeight((long) (maxMB * 1024 * 1024)).weigher(new Weigher<Key, Entry>() {
+                @Override
+                public int weigh(Key key, Entry entry) {
+                    return key.search.length() * 2 + key.reader.size() * 16 + entry.size;
+                }
+            }).build();
+        } else {
+            cache = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * The search with whitespace, quoting and property order normalized, followed by the parts of the filter it depends on.
+     */
+    public static String key(String queryString, String... filterParts) throws IOException {
+        StringBuilder key = new StringBuilder(jsonMapper.writeValueAsString(sorted(jsonMapper.readValue(queryString, Object.class))));
+        for (String filterPart : filterParts) {
+            key.append('\n').append(filterPart);
+        }
+        return key.toString();
+    }
+
+    private static Object sorted(Object json) {
+        if (json instanceof Map) {
+            Map<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) json).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), sorted(entry.getValue()));
+            }
+            return sorted;
+        }
+        if (json instanceof List) {
+            List<Object> sorted = new ArrayList<>();
+            for (Object element : (List<?>) json) {
+                sorted.add(sorted(element));
+            }
+            return sorted;
+        }
+        return json;
+    }
+
+    public List<Row> get(String key, IndexReader reader) {
+        Entry entry = cache.getIfPresent(new Key(key, readerKey(reader)));
+        if (entry != null) {
+            hits.incrementAndGet();
+            //callers may modify the rows they get
+            List<Row> rows = new ArrayList<>(entry.rows.size());
+            for (Row row : entry.rows) {
+                rows.add(new Row(row.key, row.cf == null ? null : row.cf.cloneMe()));
+            }
+            return rows;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String key, IndexReader reader, List<Row> rows) {
+        cache.put(new Key(key, readerKey(reader)), new Entry(rows));
+    }
+
+    /**
+     * Identifies the reader by its segments and their deletes, as containers may wrap the same segments in a new reader per search.
+     */
+    private static List<Object> readerKey(IndexReader reader) {
+        List<LeafReaderContext> leaves = reader.leaves();
+        List<Object> readerKey = new ArrayList<>(leaves.size());
+        for (LeafReaderContext leaf : leaves) {
+            readerKey.add(leaf.reader().getCombinedCoreAndDeletesKey());
+        }
+        return readerKey;
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    private static class Key {
+        final String search;
+        final List<Object> reader;
+
+        Key(String search, List<Object> reader) {
+            this.search = search;
+            this.reader = reader;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * search.hashCode() + reader.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return search.equals(other.search) && reader.equals(other.reader);
+        }
+    }
+
+    private static class Entry {
+        final List<Row> rows;
+        final int size;
+
+        Entry(List<Row> rows) {
+            this.rows = new ArrayList<>(rows.size());
+            for (Row row : rows) {
+                this.rows.add(new Row(row.key, row.cf == null ? null : row.cf.cloneMe()));
+            }
+            int size = 0;
+            for (Row row : rows) {
+                size += row.key.getKey().remaining() + (row.cf == null ? 0 : row.cf.dataSize());
+            }
+            this.size = size;
+        }
+    }
+}
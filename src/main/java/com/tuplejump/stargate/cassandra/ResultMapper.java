@@ -25,8 +25,10 @@ import org.apache.cassandra.db.composites.CellName;
 import org.apache.cassandra.db.composites.Composite;
 import org.apache.cassandra.db.filter.ColumnSlice;
 import org.apache.cassandra.db.filter.ExtendedFilter;
+import org.apache.cassandra.db.filter.IDiskAtomFilter;
 import org.apache.cassandra.db.filter.QueryFilter;
 import org.apache.cassandra.db.filter.SliceQueryFilter;
+import org.apache.cassandra.utils.ByteBufferUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,7 +66,19 @@ public class ResultMapper {
     }
 
 
-    public TreeMultimap docsByRowKey() {
+    /**
+     * Sorted results do not follow clustering order, so the start Cassandra sets for the first partition of a later
+     * page must not drop them. The sort cursor already skips what previous pages returned.
+     */
+    public IDiskAtomFilter sortedColumnFilter(DecoratedKey dk) {
+        if (collector.isResumed() && dk.equals(filter.dataRange.startKey())) {
+            //keys other than the range bounds get the query's own slices
+            return filter.columnFilter(ByteBufferUtil.EMPTY_BYTE_BUFFER);
+        }
+        return filter.columnFilter(dk.getKey());
+    }
+
+    public TreeMultimap<DecoratedKey, IndexEntry> docsByRowKey() {
         return collector.docsByRowKey();
     }
 
@@ -77,7 +91,7 @@ public class ResultMapper {
         ColumnSlice[] columnSlices = new ColumnSlice[entries.size()];
         int i = 0;
         for (IndexEntry entry : entries) {
-            Composite start = tableMapper.start(entry.clusteringKey);
+            Composite start = tableMapper.start(entry.clusteringKey());
             Composite end = tableMapper.end(start);
             ColumnSlice columnSlice = new ColumnSlice(start, end);
             columnSlices[i++] = columnSlice;
@@ -93,7 +107,7 @@ public class ResultMapper {
     private ColumnSlice[] getPagedColumnSlices(DecoratedKey dk, Collection<IndexEntry> entries, int pageSize) {
         ArrayList<ColumnSlice> columnSlices = new ArrayList<>(Math.min(entries.size(), pageSize));
         for (IndexEntry entry : entries) {
-            CellName cellName = entry.clusteringKey;
+            CellName cellName = entry.clusteringKey();
             if (!filter.columnFilter(dk.getKey()).maySelectPrefix(tableMapper.table.getComparator(), cellName.start())) {
                 continue;
             }
@@ -17,27 +17,35 @@
 package com.tuplejump.stargate.cassandra;
 
 import com.google.common.collect.TreeMultimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.tuplejump.stargate.lucene.IndexEntryCollector;
+import com.tuplejump.stargate.lucene.LuceneUtils;
 import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.cql3.ColumnIdentifier;
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.db.composites.CellName;
 import org.apache.cassandra.db.composites.CellNameType;
+import org.apache.cassandra.db.filter.IDiskAtomFilter;
 import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.tracing.TraceState;
+import org.apache.cassandra.tracing.Tracing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.NavigableSet;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * User: satya
  */
 public class RowFetcher {
     protected static final Logger logger = LoggerFactory.getLogger(SearchSupport.class);
+    public static final int FETCH_THREADS = Integer.getInteger("sg.fetch.threads", Runtime.getRuntime().availableProcessors());
+    public static final int FETCH_WINDOW = Integer.getInteger("sg.fetch.window", Math.max(1, 2 * FETCH_THREADS));
+    static final ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, FETCH_THREADS),
+            new ThreadFactoryBuilder().setNameFormat("SGFetch-Thread-%d").setDaemon(true).build());
     ResultMapper resultMapper;
     int columnsCount;
     int limit;
@@ -53,6 +61,9 @@ public class RowFetcher {
     }
 
     public List<Row> fetchRows() throws IOException {
+        if (resultMapper.collector.coveredColumns() != null) {
+            return fetchFromIndex();
+        }
         if(isSorted){
             return fetchSorted();
         }
@@ -62,24 +73,33 @@ public class RowFetcher {
 
     }
 
-    public List<Row> fetchSorted() throws IOException {
+    /**
+     * Builds the rows of the hits from their doc values when the index covers the table. Nothing is read from
+     * Cassandra, so rows are returned as they were last indexed, except rows with a cell which has expired since.
+     * Those are read from the table like any other hit.
+     */
+    private List<Row> fetchFromIndex() throws IOException {
         List<Row> rows = new ArrayList<>();
-        List<IndexEntryCollector.IndexEntry> docsSorted = resultMapper.docs();
-        List<IndexEntryCollector.IndexEntry> sliceList;
-        for (IndexEntryCollector.IndexEntry input : docsSorted) {
-            CellName cellName = input.clusteringKey;
-            DecoratedKey dk = input.decoratedKey;
-            sliceList = new ArrayList<>();
-            sliceList.add(input);
-            Map<CellName, ColumnFamily> fullSlice = resultMapper.fetchRangeSlice(sliceList, dk);
-            if (!resultMapper.filter.columnFilter(dk.getKey()).maySelectPrefix(table.getComparator(), cellName.start())) {
-                continue;
+        int now = (int) (resultMapper.filter.timestamp / 1000);
+        List<ColumnDefinition> columns = resultMapper.collector.coveredColumns();
+        TreeMultimap<DecoratedKey, IndexEntryCollector.IndexEntry> docsByRowKey = isSorted ? null : resultMapper.docsByRowKey();
+        Collection<IndexEntryCollector.IndexEntry> docs = isSorted ? resultMapper.docs() : docsByRowKey.values();
+        for (IndexEntryCollector.IndexEntry input : docs) {
+            DecoratedKey dk = input.decoratedKey();
+            CellName cellName = input.clusteringKey();
+            if (!isSorted && !resultMapper.filter.dataRange.contains(dk)) continue;
+            IDiskAtomFilter columnFilter = isSorted ? resultMapper.sortedColumnFilter(dk) : resultMapper.filter.columnFilter(dk.getKey());
+            if (!columnFilter.maySelectPrefix(table.getComparator(), cellName.start())) continue;
+            Long expiry = input.getLongOrNull(LuceneUtils.CF_EXPIRY);
+            ColumnFamily data;
+            if (expiry != null && expiry <= now) {
+                data = resultMapper.fetchRangeSlice(Collections.singletonList(input), dk).get(cellName);
+                if (data == null || resultMapper.searchSupport.deleteIfNotLatest(dk, data.maxTimestamp(), input.pkName(), data))
+                    continue;
+            } else {
+                data = resultMapper.tableMapper.rowFromIndex(input, columns);
             }
-            ColumnFamily data = fullSlice.get(cellName);
-            if (data == null || resultMapper.searchSupport.deleteIfNotLatest(dk, data.maxTimestamp(), input.pkName, data))
-                continue;
-            float score = input.score;
-            ColumnFamily cleanColumnFamily = resultMapper.showScore ? scored(score, data) : data;
+            ColumnFamily cleanColumnFamily = resultMapper.showScore ? scored(input.score, data) : data;
             rows.add(new Row(dk, cleanColumnFamily));
             columnsCount++;
             if (columnsCount > limit) break;
@@ -87,28 +107,25 @@ public class RowFetcher {
         return rows;
     }
 
-    private List<Row> fetchIOOptimized() throws IOException {
+    /**
+     * Reads the sorted hits in batches of as many hits as rows are still needed. Each partition of a batch
+     * is read once for all its hits, and the rows are then taken in sort order.
+     */
+    public List<Row> fetchSorted() throws IOException {
         List<Row> rows = new ArrayList<>();
-        TreeMultimap<DecoratedKey, IndexEntryCollector.IndexEntry> docs = resultMapper.docsByRowKey();
-
-        for (DecoratedKey dk : docs.keySet()) {
-            NavigableSet<IndexEntryCollector.IndexEntry> entries = docs.get(dk);
-
-            if (!resultMapper.filter.dataRange.contains(dk)) {
-                if (logger.isTraceEnabled()) {
-                    logger.trace("Skipping entry {} outside of assigned scan range", dk.getToken());
-                }
-                continue;
-            }
-            final Map<CellName, ColumnFamily> fullSlice = resultMapper.fetchPagedRangeSlice(entries, dk, limit);
-
-            for (IndexEntryCollector.IndexEntry input : entries) {
-                CellName cellName = input.clusteringKey;
-                if (!resultMapper.filter.columnFilter(dk.getKey()).maySelectPrefix(table.getComparator(), cellName.start())) {
-                    continue;
-                }
-                ColumnFamily data = fullSlice.get(cellName);
-                if (data == null || resultMapper.searchSupport.deleteIfNotLatest(dk, data.maxTimestamp(), input.pkName, data))
+        List<IndexEntryCollector.IndexEntry> docsSorted = resultMapper.docs();
+        int next = 0;
+        while (next < docsSorted.size() && columnsCount <= limit) {
+            int batchEnd = (int) Math.min(docsSorted.size(), (long) next + limit - columnsCount + 1);
+            List<IndexEntryCollector.IndexEntry> batch = docsSorted.subList(next, batchEnd);
+            next = batchEnd;
+            Map<DecoratedKey, Map<CellName, ColumnFamily>> partitions = fetchPartitions(batch);
+            for (IndexEntryCollector.IndexEntry input : batch) {
+                DecoratedKey dk = input.decoratedKey();
+                Map<CellName, ColumnFamily> fullSlice = partitions.get(dk);
+                if (fullSlice == null) continue;
+                ColumnFamily data = fullSlice.get(input.clusteringKey());
+                if (data == null || resultMapper.searchSupport.deleteIfNotLatest(dk, data.maxTimestamp(), input.pkName(), data))
                     continue;
                 float score = input.score;
                 ColumnFamily cleanColumnFamily = resultMapper.showScore ? scored(score, data) : data;
@@ -116,12 +133,150 @@ public class RowFetcher {
                 columnsCount++;
                 if (columnsCount > limit) break;
             }
-            if (columnsCount > limit) break;
         }
+        return rows;
+    }
 
+    /**
+     * Reads the rows of the hits a partition at a time. Hits the query's column filter excludes are not read.
+     */
+    private Map<DecoratedKey, Map<CellName, ColumnFamily>> fetchPartitions(List<IndexEntryCollector.IndexEntry> batch) {
+        Map<DecoratedKey, TreeMap<CellName, IndexEntryCollector.IndexEntry>> byPartition = new LinkedHashMap<>();
+        for (IndexEntryCollector.IndexEntry input : batch) {
+            DecoratedKey dk = input.decoratedKey();
+            CellName cellName = input.clusteringKey();
+            if (!resultMapper.sortedColumnFilter(dk).maySelectPrefix(table.getComparator(), cellName.start())) {
+                continue;
+            }
+            TreeMap<CellName, IndexEntryCollector.IndexEntry> entries = byPartition.get(dk);
+            if (entries == null) {
+                //slices of a read must be in clustering order and must not overlap
+                entries = new TreeMap<>(resultMapper.tableMapper.clusteringCType);
+                byPartition.put(dk, entries);
+            }
+            entries.put(cellName, input);
+        }
+        Map<DecoratedKey, Map<CellName, ColumnFamily>> partitions = new HashMap<>();
+        for (Map.Entry<DecoratedKey, TreeMap<CellName, IndexEntryCollector.IndexEntry>> entry : byPartition.entrySet()) {
+            partitions.put(entry.getKey(), resultMapper.fetchRangeSlice(entry.getValue().values(), entry.getKey()));
+        }
+        return partitions;
+    }
+
+    /**
+     * Reads partitions in token order while the reads of the next partitions run on the fetch pool.
+     * No more partitions are read ahead than hits are needed to fill the limit, and reads still pending
+     * once the limit is reached are cancelled.
+     */
+    private List<Row> fetchIOOptimized() throws IOException {
+        List<Row> rows = new ArrayList<>();
+        TreeMultimap<DecoratedKey, IndexEntryCollector.IndexEntry> docs = resultMapper.docsByRowKey();
+        Iterator<DecoratedKey> keys = docs.keySet().iterator();
+        Deque<PartitionRead> reads = new ArrayDeque<>();
+        int pendingEntries = 0;
+        try {
+            while (columnsCount <= limit) {
+                while (keys.hasNext() && (reads.isEmpty() || (reads.size() < FETCH_WINDOW && pendingEntries <= limit - columnsCount))) {
+                    DecoratedKey dk = keys.next();
+                    if (!resultMapper.filter.dataRange.contains(dk)) {
+                        if (logger.isTraceEnabled()) {
+                            logger.trace("Skipping entry {} outside of assigned scan range", dk.getToken());
+                        }
+                        continue;
+                    }
+                    PartitionRead read = new PartitionRead(dk, docs.get(dk), !reads.isEmpty());
+                    reads.add(read);
+                    pendingEntries += read.entries.size();
+                }
+                PartitionRead read = reads.poll();
+                if (read == null) break;
+                pendingEntries -= read.entries.size();
+                DecoratedKey dk = read.dk;
+                final Map<CellName, ColumnFamily> fullSlice = read.get();
+
+                for (IndexEntryCollector.IndexEntry input : read.entries) {
+                    CellName cellName = input.clusteringKey();
+                    if (!resultMapper.filter.columnFilter(dk.getKey()).maySelectPrefix(table.getComparator(), cellName.start())) {
+                        continue;
+                    }
+                    ColumnFamily data = fullSlice.get(cellName);
+                    if (data == null || resultMapper.searchSupport.deleteIfNotLatest(dk, data.maxTimestamp(), input.pkName(), data))
+                        continue;
+                    float score = input.score;
+                    ColumnFamily cleanColumnFamily = resultMapper.showScore ? scored(score, data) : data;
+                    rows.add(new Row(dk, cleanColumnFamily));
+                    columnsCount++;
+                    if (columnsCount > limit) break;
+                }
+            }
+        } finally {
+            for (PartitionRead read : reads) {
+                read.cancel();
+            }
+        }
         return rows;
     }
 
+    /**
+     * The read of the hits of one partition. The fetching thread does a read itself when nothing is read
+     * ahead of it, other reads go to the fetch pool and are traced in the session of the query.
+     */
+    private class PartitionRead implements Callable<Map<CellName, ColumnFamily>> {
+        final DecoratedKey dk;
+        final NavigableSet<IndexEntryCollector.IndexEntry> entries;
+        final TraceState traceState;
+        final Future<Map<CellName, ColumnFamily>> future;
+
+        PartitionRead(DecoratedKey dk, NavigableSet<IndexEntryCollector.IndexEntry> entries, boolean readAhead) {
+            this.dk = dk;
+            this.entries = entries;
+            this.traceState = Tracing.instance.get();
+            if (readAhead && FETCH_THREADS > 0) {
+                //doc values are not thread safe, so keys are decoded here and not on the pool
+                for (IndexEntryCollector.IndexEntry entry : entries) {
+                    entry.clusteringKey();
+                }
+                this.future = executorService.submit(this);
+            } else {
+                this.future = null;
+            }
+        }
+
+        @Override
+        public Map<CellName, ColumnFamily> call() {
+            TraceState previous = Tracing.instance.get();
+            Tracing.instance.set(traceState);
+            try {
+                return resultMapper.fetchPagedRangeSlice(entries, dk, limit);
+            } finally {
+                Tracing.instance.set(previous);
+            }
+        }
+
+        /**
+         * Waits for a read ahead no longer than the range read timeout, after which the query has timed out anyway.
+         */
+        Map<CellName, ColumnFamily> get() {
+            if (future == null) return call();
+            try {
+                return future.get(DatabaseDescriptor.getRangeRpcTimeout(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (TimeoutException e) {
+                future.cancel(false);
+                throw new RuntimeException("Timed out reading partition [" + dk + "] ahead", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        void cancel() {
+            if (future != null) future.cancel(false);
+        }
+    }
+
 
     private ColumnFamily scored(Float score, ColumnFamily data) {
         ColumnFamily cleanColumnFamily = data.getFactory().create(table.metadata);
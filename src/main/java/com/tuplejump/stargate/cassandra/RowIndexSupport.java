@@ -16,7 +16,9 @@
 
 package com.tuplejump.stargate.cassandra;
 
+import com.tuplejump.stargate.CommitScheduler;
 import com.tuplejump.stargate.Fields;
+import com.tuplejump.stargate.Generations;
 import com.tuplejump.stargate.IndexContainer;
 import com.tuplejump.stargate.lucene.*;
 import com.tuplejump.stargate.lucene.Properties;
@@ -39,7 +41,10 @@ import org.apache.cassandra.serializers.MarshalException;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,10 +62,20 @@ public class RowIndexSupport {
     public final IndexContainer indexContainer;
     public final String keyspace;
     public final TableMapper tableMapper;
+    public final Generations generations = new Generations();
+    public final CommitScheduler commitScheduler;
+    public final ResultCache resultCache;
+    public final SearchCache searchCache = new SearchCache();
+    static final int MAX_DEFERRED_WRITES = Integer.getInteger("sg.deferred.writes.max", 100000);
+    final Map<DecoratedKey, List<DeferredWrite>> deferredWrites = new LinkedHashMap<>();
+    int deferredWriteCount;
+    volatile boolean hasDeferredWrites;
 
 
-    public RowIndexSupport(String keyspace, IndexContainer indexContainer, Options options, TableMapper tableMapper) {
+    public RowIndexSupport(String keyspace, IndexContainer indexContainer, Options options, TableMapper tableMapper, CommitScheduler commitScheduler) {
         this.options = options;
+        this.commitScheduler = commitScheduler;
+        this.resultCache = new ResultCache(options.primary.getResultCacheMaxMB());
         this.tableMapper = tableMapper;
         this.keyspace = keyspace;
         this.indexContainer = indexContainer;
@@ -79,8 +94,133 @@ public class RowIndexSupport {
      */
 
     public void indexRow(ByteBuffer rowKey, ColumnFamily cf) {
+        Map<Indexer, IndexBatch> batches = new HashMap<>(1);
+        indexRow(rowKey, cf, batches);
+        for (IndexBatch batch : batches.values()) {
+            batch.flush();
+        }
+    }
+
+    /**
+     * Adds the writes for one row to the batch of its indexer. Flushing the batches is left to the caller.
+     *
+     * @param rowKey  The shard key for this row.
+     * @param cf      the row to write.
+     * @param batches the batches by indexer.
+     */
+    public void indexRow(ByteBuffer rowKey, ColumnFamily cf, Map<Indexer, IndexBatch> batches) {
         DecoratedKey dk = tableMapper.decorateKey(rowKey);
+        Indexer indexer = indexer(dk);
+        if (indexer == null) {
+            defer(dk, new DeferredWrite(rowKey, cf, null));
+            return;
+        }
+        addRow(dk, rowKey, cf, batch(indexer, batches));
+    }
+
+    /**
+     * Deletes the docs matching all the terms from the index of the key.
+     */
+    public void delete(DecoratedKey dk, Term... terms) {
+        Indexer indexer = indexer(dk);
+        if (indexer != null) {
+            indexer.delete(terms);
+        } else {
+            BooleanQuery.Builder query = new BooleanQuery.Builder();
+            for (Term term : terms) {
+                query.add(new TermQuery(term), BooleanClause.Occur.MUST);
+            }
+            defer(dk, new DeferredWrite(null, null, query.build()));
+        }
+    }
+
+    /**
+     * A key may have no indexer while the token ranges of this node change, or during commit log replay before the
+     * ring is known. Writes for such keys are deferred until a ring change adds an indexer for them. The deferred
+     * writes of a key are applied before its next write, so that the writes of a key stay in order.
+     *
+     * @return the indexer of the key, or null if no range index of this node covers it yet.
+     */
+    private Indexer indexer(DecoratedKey dk) {
         Indexer indexer = indexContainer.indexer(dk);
+        if (indexer != null && hasDeferredWrites) {
+            synchronized (deferredWrites) {
+                List<DeferredWrite> writes = deferredWrites.remove(dk);
+                if (writes != null) {
+                    apply(dk, writes, new IndexBatch(indexer)).flush();
+                    deferredWriteCount -= writes.size();
+                }
+                hasDeferredWrites = !deferredWrites.isEmpty();
+            }
+        }
+        return indexer;
+    }
+
+    /**
+     * At most MAX_DEFERRED_WRITES writes are held. Writes past that fail, and the index needs a rebuild.
+     */
+    private void defer(DecoratedKey dk, DeferredWrite write) {
+        synchronized (deferredWrites) {
+            if (deferredWriteCount >= MAX_DEFERRED_WRITES) {
+                throw new IllegalStateException("[" + deferredWriteCount + "] index writes for keys with no indexer are deferred, dropping the write of key ["
+                        + dk + "]. Rebuild the index once the token ranges of this node settle");
+            }
+            if (deferredWrites.isEmpty() && logger.isInfoEnabled())
+                logger.info("Deferring index writes for keys with no indexer, starting with key [" + dk + "]");
+            List<DeferredWrite> writes = deferredWrites.get(dk);
+            if (writes == null) {
+                writes = new ArrayList<>();
+                deferredWrites.put(dk, writes);
+            }
+            writes.add(write);
+            deferredWriteCount++;
+            hasDeferredWrites = true;
+        }
+    }
+
+    /**
+     * Applies the deferred writes of the keys which now have an indexer. Called when the indexers are updated.
+     */
+    public void applyDeferredWrites() {
+        synchronized (deferredWrites) {
+            if (deferredWrites.isEmpty()) return;
+            Map<Indexer, IndexBatch> batches = new HashMap<>();
+            Iterator<Map.Entry<DecoratedKey, List<DeferredWrite>>> entries = deferredWrites.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<DecoratedKey, List<DeferredWrite>> entry = entries.next();
+                Indexer indexer = indexContainer.indexer(entry.getKey());
+                if (indexer == null) continue;
+                apply(entry.getKey(), entry.getValue(), batch(indexer, batches));
+                deferredWriteCount -= entry.getValue().size();
+                entries.remove();
+            }
+            for (IndexBatch batch : batches.values()) {
+                batch.flush();
+            }
+            hasDeferredWrites = !deferredWrites.isEmpty();
+            if (!batches.isEmpty() && logger.isInfoEnabled())
+                logger.info("Applied deferred index writes, writes of [" + deferredWrites.size() + "] keys remain deferred");
+        }
+    }
+
+    private IndexBatch apply(DecoratedKey dk, List<DeferredWrite> writes, IndexBatch batch) {
+        for (DeferredWrite write : writes) {
+            if (write.cf != null) addRow(dk, write.rowKey, write.cf, batch);
+            else batch.delete(write.delete);
+        }
+        return batch;
+    }
+
+    private static IndexBatch batch(Indexer indexer, Map<Indexer, IndexBatch> batches) {
+        IndexBatch batch = batches.get(indexer);
+        if (batch == null) {
+            batch = new IndexBatch(indexer);
+            batches.put(indexer, batch);
+        }
+        return batch;
+    }
+
+    private void addRow(DecoratedKey dk, ByteBuffer rowKey, ColumnFamily cf, IndexBatch batch) {
         IndexEntryBuilder builder = new IndexEntryBuilder();
         Iterator<Cell> cols = cf.iterator();
         if (cols.hasNext()) {
@@ -88,24 +228,24 @@ public class RowIndexSupport {
                 addCell(rowKey, builder, cols.next());
             }
             builder.finishLast();
-            addToIndex(indexer, dk, builder);
+            addToIndex(batch, dk, builder);
         } else {
             DeletionInfo deletionInfo = cf.deletionInfo();
             if (deletionInfo != null && cf.isMarkedForDelete()) {
                 if (deletionInfo.rangeIterator().hasNext()) {
-                    deleteRowsMarked(indexer, deletionInfo);
+                    deleteRowsMarked(batch, deletionInfo);
                 } else {
                     //remove the partition
                     String rkString = rowKeyString(dk);
                     Term rowkeyTerm = LuceneUtils.rowkeyTerm(rkString);
-                    indexer.delete(rowkeyTerm);
+                    batch.delete(new TermQuery(rowkeyTerm));
                 }
             }
         }
 
     }
 
-    public void deleteRowsMarked(Indexer indexer, DeletionInfo deletionInfo) {
+    public void deleteRowsMarked(IndexBatch batch, DeletionInfo deletionInfo) {
         //this is a delete
         //get the range tombstones
         Iterator<RangeTombstone> rangeIterator = deletionInfo.rangeIterator();
@@ -116,13 +256,15 @@ public class RowIndexSupport {
             Composite end = rangeTombstone.max;
             String endPK = tableMapper.clusteringCType.getString(end);
             Query deleteQuery = LuceneUtils.getPKRangeDeleteQuery(startPK, endPK);
-            indexer.delete(deleteQuery);
+            batch.delete(deleteQuery);
         }
     }
 
-    private void addToIndex(Indexer indexer, DecoratedKey dk, IndexEntryBuilder builder) {
+    private void addToIndex(IndexBatch batch, DecoratedKey dk, IndexEntryBuilder builder) {
         List<Pair<String, ByteBuffer>> primaryKeys = builder.primaryKeys;
         List<Long> timestamps = builder.timestamps;
+        List<Integer> expiries = builder.expiries;
+        List<Set<CellName>> cellNames = builder.cellNames;
         List<List<Field>> entries = builder.entries;
         for (int i = 0; i < primaryKeys.size(); i++) {
             Pair pkPair = primaryKeys.get(i);
@@ -130,7 +272,8 @@ public class RowIndexSupport {
             ByteBuffer pkBuf = (ByteBuffer) pkPair.right;
             List<Field> fields = entries.get(i);
             boolean isPartialUpdate = false;
-            if (fields.size() < options.fieldTypes.size()) {
+            //a write to collection elements leaves the other elements as they were
+            if (fields.size() < options.fieldTypes.size() || hasCollectionCell(cellNames.get(i))) {
                 if (logger.isDebugEnabled())
                     logger.debug("Column family update -" + dk);
                 isPartialUpdate = true;
@@ -138,15 +281,35 @@ public class RowIndexSupport {
             fields.addAll(idFields(dk, pk, pkBuf));
             long ts = timestamps.get(i);
             fields.add(LuceneUtils.tsField(ts, tsFieldType));
+            int expiry = expiries.get(i);
             if (isPartialUpdate) {
-                loadOldRow(dk, pkBuf, fields);
+                expiry = Math.min(expiry, loadOldRow(dk, pkBuf, fields, cellNames.get(i)));
+            }
+            if (options.primary.isCoveringReads()) {
+                //rows built from the index carry the write time and are read from the table once a cell expires
+                fields.add(LuceneUtils.tsDocValue(ts));
+                if (expiry != Integer.MAX_VALUE) fields.add(LuceneUtils.expiryDocValue(expiry));
             }
             Term pkTerm = new Term(LuceneUtils.PK_INDEXED, LuceneUtils.primaryKeyField(pk).stringValue());
-            indexer.upsert(pkTerm, fields);
+            batch.upsert(pkTerm, fields);
         }
     }
 
-    private void loadOldRow(DecoratedKey dk, ByteBuffer pkBuf, List<Field> fields) {
+    private static boolean hasCollectionCell(Set<CellName> cellNames) {
+        for (CellName cellName : cellNames) {
+            if (cellName.isCollectionCell()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the fields of the cells of the row which the update did not write. A cell the update wrote is already in
+     * the fields, and doc values allow one value per field. Collection elements are cells of their own, so the
+     * other elements of an updated collection are added.
+     *
+     * @return the earliest expiration time of the cells of the row, or Integer.MAX_VALUE if none expire.
+     */
+    private int loadOldRow(DecoratedKey dk, ByteBuffer pkBuf, List<Field> fields, Set<CellName> updated) {
         CellName clusteringKey = tableMapper.makeClusteringKey(pkBuf);
         Composite start = tableMapper.start(clusteringKey);
         Composite end = tableMapper.end(start);
@@ -156,16 +319,18 @@ public class RowIndexSupport {
         ColumnFamily columnFamily = tableMapper.table.getColumnFamily(queryFilter);
         Map<CellName, ColumnFamily> fullSlice = tableMapper.getRows(columnFamily);
         ColumnFamily oldDocument = fullSlice.get(clusteringKey);
-
+        int expiry = Integer.MAX_VALUE;
         for (Cell cell : oldDocument) {
+            if (cell instanceof ExpiringCell) expiry = Math.min(expiry, cell.getLocalDeletionTime());
             CellName cellName = cell.name();
             ColumnIdentifier cql3ColName = cellName.cql3ColumnName(tableMapper.cfMetaData);
             String actualColName = cql3ColName.toString();
             ColumnDefinition columnDefinition = tableMapper.cfMetaData.getColumnDefinition(cql3ColName);
-            if (options.shouldIndex(actualColName)) {
+            if (options.shouldIndex(actualColName) && !updated.contains(cellName)) {
                 addFields(cell, actualColName, columnDefinition, fields);
             }
         }
+        return expiry;
     }
 
     private void addCell(ByteBuffer rowKey, IndexEntryBuilder builder, Cell cell) {
@@ -190,6 +355,7 @@ public class RowIndexSupport {
             //fields for clustering key columns need to be added.
             addClusteringKeyFields(clusteringKey, cell.timestamp(), builder);
         }
+        if (cell instanceof ExpiringCell) builder.setCurrentExpiry(cell.getLocalDeletionTime());
         addCell(cell, cql3ColName, actualColName, builder);
     }
 
@@ -197,6 +363,7 @@ public class RowIndexSupport {
         ColumnDefinition columnDefinition = tableMapper.cfMetaData.getColumnDefinition(cql3ColName);
         if (options.shouldIndex(actualColName)) {
             builder.setCurrentTimestamp(cell.timestamp());
+            builder.addCellName(cell.name());
             List<Field> fields = builder.getFieldList();
             addFields(cell, actualColName, columnDefinition, fields);
         }
@@ -271,11 +438,18 @@ public class RowIndexSupport {
     }
 
     protected List<Field> idFields(DecoratedKey rowKey, String pkName, ByteBuffer pk) {
-        return Arrays.asList(
+        List<Field> fields = new ArrayList<>(7);
+        Collections.addAll(fields,
                 LuceneUtils.rkBytesDocValue(rowKey.getKey()),
                 LuceneUtils.primaryKeyField(pkName),
                 LuceneUtils.pkBytesDocValue(pk), LuceneUtils.pkNameDocValue(pkName),
                 LuceneUtils.rowKeyIndexed(rowKeyString(rowKey)));
+        if (tableMapper.hasLongTokens) {
+            long token = TableMapper.tokenValue(rowKey.getToken());
+            fields.add(LuceneUtils.tokenField(token));
+            fields.add(LuceneUtils.tokenDocValue(token));
+        }
+        return fields;
     }
 
     private String rowKeyString(DecoratedKey rowKey) {
@@ -327,10 +501,14 @@ public class RowIndexSupport {
         private List<Field> fieldList;
         private String currentKey;
         private long currentTimestamp;
+        private int currentExpiry;
+        private Set<CellName> currentCellNames;
 
         public final List<List<Field>> entries = new FastList<>();
         public final List<Pair<String, ByteBuffer>> primaryKeys = new FastList<>();
         public final List<Long> timestamps = new FastList<>();
+        public final List<Integer> expiries = new FastList<>();
+        public final List<Set<CellName>> cellNames = new FastList<>();
 
 
         public boolean isNew(String primaryKey) {
@@ -342,6 +520,8 @@ public class RowIndexSupport {
             currentKey = primaryKey;
             primaryKeys.add(Pair.create(primaryKey, primaryKeyBuffer));
             currentTimestamp = 0;
+            currentExpiry = Integer.MAX_VALUE;
+            currentCellNames = new HashSet<>();
             fieldList = new LinkedList<>();
         }
 
@@ -349,6 +529,8 @@ public class RowIndexSupport {
             if (fieldList != null) {
                 entries.add(fieldList);
                 timestamps.add(currentTimestamp);
+                expiries.add(currentExpiry);
+                cellNames.add(currentCellNames);
             }
         }
 
@@ -356,9 +538,31 @@ public class RowIndexSupport {
             currentTimestamp = Math.max(currentTimestamp, ts);
         }
 
+        public void setCurrentExpiry(int localExpirationTime) {
+            currentExpiry = Math.min(currentExpiry, localExpirationTime);
+        }
+
+        public void addCellName(CellName cellName) {
+            currentCellNames.add(cellName);
+        }
+
         public List<Field> getFieldList() {
             return fieldList;
         }
     }
 
+    /**
+     * A row to index, or a delete, for a key which had no indexer when it was written.
+     */
+    static final class DeferredWrite {
+        final ByteBuffer rowKey;
+        final ColumnFamily cf;
+        final Query delete;
+
+        DeferredWrite(ByteBuffer rowKey, ColumnFamily cf, Query delete) {
+            this.rowKey = rowKey;
+            this.cf = cf;
+            this.delete = delete;
+        }
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.tuplejump.stargate.lucene.Options;
+import com.tuplejump.stargate.lucene.query.Search;
+import org.codehaus.jackson.JsonNode;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User: satya
+ * A LRU cache of parsed searches by query string, so that repeated queries skip parsing and query building.
+ * Functions keep state while rows are collected, so the JSON of the function is cached with the search
+ * and a fresh function is read from it for every hit, sharing the built query and sort of the cached search.
+ */
+public class SearchCache {
+    public static final int SIZE = Integer.getInteger("sg.search.cache.size", 1000);
+
+    private final Cache<String, Entry> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SearchCache() {
+        cache = SIZE > 0 ? CacheBuilder.newBuilder().maximumSize(SIZE).<String, Entry>build() : null;
+    }
+
+    public Search get(String queryString) throws Exception {
+        if (cache == null) return Search.fromJson(queryString);
+        Entry entry = cache.getIfPresent(queryString);
+        if (entry == null) {
+            misses.incrementAndGet();
+            entry = parse(queryString);
+            cache.put(queryString, entry);
+            return entry.search;
+        }
+        hits.incrementAndGet();
+        if (entry.function == null) return entry.search;
+        return entry.search.withFunction(Search.functionFromJson(entry.function));
+    }
+
+    private static Entry parse(String queryString) {
+        JsonNode json;
+        try {
+            json = Options.inputMapper.readTree(queryString);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Cannot parse JSON index expression: " + queryString, e);
+        }
+        JsonNode function = json.get("function");
+        return new Entry(Search.fromJson(json), function == null || function.isNull() ? null : function);
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public void invalidate() {
+        if (cache != null) cache.invalidateAll();
+    }
+
+    private static final class Entry {
+        final Search search;
+        final JsonNode function;
+
+        Entry(Search search, JsonNode function) {
+            this.search = search;
+            this.function = function;
+        }
+    }
+}
@@ -21,15 +21,16 @@ import com.tuplejump.stargate.Utils;
 import com.tuplejump.stargate.lucene.IndexEntryCollector;
 import com.tuplejump.stargate.lucene.LuceneUtils;
 import com.tuplejump.stargate.lucene.Options;
+import com.tuplejump.stargate.lucene.ParallelSearcher;
 import com.tuplejump.stargate.lucene.SearcherCallback;
 import com.tuplejump.stargate.lucene.query.Search;
+import com.tuplejump.stargate.lucene.query.function.AggregateFunction;
 import com.tuplejump.stargate.lucene.query.function.Function;
+import com.tuplejump.stargate.lucene.query.function.NoOp;
 import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.cql3.Operator;
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.db.composites.CellName;
-import org.apache.cassandra.db.composites.Composite;
-import org.apache.cassandra.db.composites.Composites;
 import org.apache.cassandra.db.filter.ExtendedFilter;
 import org.apache.cassandra.db.index.SecondaryIndexManager;
 import org.apache.cassandra.db.index.SecondaryIndexSearcher;
@@ -38,12 +39,11 @@ import org.apache.cassandra.dht.AbstractBounds;
 import org.apache.cassandra.dht.Range;
 import org.apache.cassandra.dht.Token;
 import org.apache.commons.lang3.StringEscapeUtils;
-import org.apache.lucene.search.Query;
+import org.apache.lucene.search.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.util.*;
 
@@ -57,6 +57,8 @@ public class SearchSupport extends SecondaryIndexSearcher {
 
     public static final Logger logger = LoggerFactory.getLogger(SearchSupport.class);
 
+    public static final int RESULTS_LIMIT_MARGIN = Integer.getInteger("sg.results.limit.margin", 100);
+
     protected RowIndex currentIndex;
 
     protected TableMapper tableMapper;
@@ -65,21 +67,27 @@ public class SearchSupport extends SecondaryIndexSearcher {
 
     protected Set<String> fieldNames;
 
+    protected List<ColumnDefinition> coveredColumns;
+
     public SearchSupport(SecondaryIndexManager indexManager, RowIndex currentIndex, Set<ByteBuffer> columns, Options options) {
         super(indexManager, columns);
         this.options = options;
         this.currentIndex = currentIndex;
         this.fieldNames = options.fieldTypes.keySet();
         this.tableMapper = currentIndex.getTableMapper();
+        this.coveredColumns = options.primary.isCoveringReads() ? tableMapper.coveredColumns(options) : null;
+        if (options.primary.isCoveringReads() && coveredColumns == null && logger.isDebugEnabled()) {
+            logger.debug("Index {} does not cover all columns. Rows are read from the table", currentIndex.getIndexName());
+        }
     }
 
 
     protected Search getQuery(IndexExpression predicate) throws Exception {
-        return Search.fromJson(getQueryString(predicate));
+        return getQuery(getQueryString(predicate));
     }
 
     protected Search getQuery(String queryString) throws Exception {
-        return Search.fromJson(queryString);
+        return currentIndex.getRowIndexSupport().searchCache.get(queryString);
     }
 
     protected String getQueryString(IndexExpression predicate) throws Exception {
@@ -122,49 +130,46 @@ public class SearchSupport extends SecondaryIndexSearcher {
         final Range<Token> filterRange = new Range<>(keyRange.left.getToken(), keyRange.right.getToken());
         final boolean isSingleToken = filterRange.left.equals(filterRange.right);
         final boolean isFullRange = isSingleToken && baseCfs.partitioner.getMinimumToken().equals(filterRange.left);
-        final boolean shouldSaveToCache = isPagingQuery(filter.dataRange);
-        final boolean shouldRetrieveFromCache = shouldSaveToCache && !isFirstPage((DataRange.Paging) filter.dataRange);
+        final ResultCache resultCache = currentIndex.getRowIndexSupport().resultCache;
+        final String cacheKey = resultCacheKey(resultCache, filter, search, queryString);
 
         SearcherCallback<List<Row>> sc = new SearcherCallback<List<Row>>() {
             @Override
-            public List<Row> doWithSearcher(org.apache.lucene.search.IndexSearcher searcher) throws Exception {
+            public List<Row> doWithSearcher(IndexSearcher searcher) throws Exception {
                 Utils.SimpleTimer timer = Utils.getStartedTimer(logger);
                 List<Row> results;
                 if (search == null) {
                     results = new ArrayList<>();
+                } else if (cacheKey != null && (results = resultCache.get(cacheKey, searcher.getIndexReader())) != null) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Result cache hit for [{}]", queryString);
+                    }
                 } else {
                     Utils.SimpleTimer timer2 = Utils.getStartedTimer(SearchSupport.logger);
                     Function function = search.function();
                     Query query = LuceneUtils.getQueryUpdatedWithPKCondition(search.query(options), getPartitionKeyString(filter));
-                    int resultsLimit = searcher.getIndexReader().maxDoc();
-                    if (resultsLimit == 0) {
-                        resultsLimit = 1;
-                    }
+                    int resultsLimit = getResultsLimit(searcher, filter, function, false);
                     function.init(options);
-                    IndexEntryCollector collector = null;
-                    if (shouldRetrieveFromCache) {
-                        collector = currentIndex.collectorMap.get(queryString);
-                    }
-                    if (collector == null) {
-                        collector = new IndexEntryCollector(tableMapper, search, options, resultsLimit);
-                        searcher.search(query, collector);
-                        if (shouldSaveToCache) {
-                            currentIndex.collectorMap.put(queryString, collector);
-                        }
-                        if (logger.isInfoEnabled()) {
-                            logger.info("Adding collector to cache");
-                        }
-                    } else if (logger.isInfoEnabled()){
-                        logger.info("Found collector in cache");
-                    }
+                    FieldDoc after = function.needsAllResults() ? null : getSortCursor(searcher, filter, search);
+                    IndexEntryCollector collector = collect(searcher, query, search, resultsLimit, after, filter);
                     timer2.endLogTime("Lucene search for [" + collector.getTotalHits() + "] results ");
                     if (SearchSupport.logger.isDebugEnabled()) {
                         SearchSupport.logger.debug(String.format("Search results [%s]", collector.getTotalHits()));
                     }
-                    ResultMapper iter = new ResultMapper(tableMapper, searchSupport, filter, collector, function.shouldTryScoring() && search.isShowScore());
+                    boolean showScore = function.shouldTryScoring() && search.isShowScore();
                     Utils.SimpleTimer timer3 = Utils.getStartedTimer(SearchSupport.logger);
-                    results = function.process(iter, baseCfs, currentIndex);
+                    results = function.process(new ResultMapper(tableMapper, searchSupport, filter, collector, showScore), baseCfs, currentIndex);
+                    if (collector.isTruncated() && results.size() < filter.currentLimit()) {
+                        //stale or filtered out entries used up the margin. Fall back to collecting all hits.
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Limited collection returned [{}] rows. Collecting all hits", results.size());
+                        }
+                        function.init(options);
+                        collector = collect(searcher, query, search, getResultsLimit(searcher, filter, function, true), after, filter);
+                        results = function.process(new ResultMapper(tableMapper, searchSupport, filter, collector, showScore), baseCfs, currentIndex);
+                    }
                     timer3.endLogTime("Aggregation [" + results.size() + "] results");
+                    if (cacheKey != null) resultCache.put(cacheKey, searcher.getIndexReader(), results);
                 }
                 timer.endLogTime("Search with results [" + results.size() + "] ");
                 return results;
@@ -190,6 +195,126 @@ public class SearchSupport extends SecondaryIndexSearcher {
         return currentIndex.search(sc);
     }
 
+    /**
+     * Only results of functions which need all the hits are cached. They do not depend on paging state
+     * and are the expensive ones to recompute.
+     *
+     * @return the cache key, or null if the results should not be cached.
+     */
+    protected String resultCacheKey(ResultCache resultCache, ExtendedFilter filter, Search search, String queryString) {
+        if (!resultCache.isEnabled() || search == null || !search.function().needsAllResults()) return null;
+        try {
+            return ResultCache.key(queryString, String.valueOf(getPartitionKeyString(filter)),
+                    String.valueOf(filter.dataRange.keyRange()), String.valueOf(filter.getClause()), String.valueOf(filter.currentLimit()));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Large indexes are collected in slices of segments in parallel, and the slices are merged.
+     */
+    protected IndexEntryCollector collect(IndexSearcher searcher, Query query, final Search search, final int resultsLimit, final FieldDoc after, ExtendedFilter filter) throws IOException {
+        //functions which need all the hits collect them by score, ignoring the filter range
+        final ExtendedFilter rangeFilter = search.function().needsAllResults() ? null : filter;
+        if (rangeFilter != null && !(search.usesSorting() && search.sort(options) != null)) {
+            //sorted pages do not follow token order, so only unsorted searches are restricted to the range
+            query = getQueryUpdatedWithTokenRange(searcher, query, rangeFilter);
+        }
+        if (isCountStar(search)) {
+            int count = ParallelSearcher.countFromStats(searcher, query);
+            if (count >= 0) {
+                IndexEntryCollector collector = new IndexEntryCollector(tableMapper, search, options, 1, after, rangeFilter);
+                collector.addCountedHits(count);
+                return collector;
+            }
+        }
+        List<IndexEntryCollector> parts = ParallelSearcher.search(searcher, query, new ParallelSearcher.CollectorFactory<IndexEntryCollector>() {
+            @Override
+            public IndexEntryCollector newCollector(int maxDocs) throws IOException {
+                IndexEntryCollector collector = new IndexEntryCollector(tableMapper, search, options, Math.min(resultsLimit, maxDocs), after, rangeFilter);
+                if (coveredColumns != null && search.function() instanceof NoOp) collector.coverColumns(coveredColumns);
+                return collector;
+            }
+        });
+        IndexEntryCollector collector = parts.get(0);
+        if (parts.size() > 1) collector.merge(parts.subList(1, parts.size()), resultsLimit);
+        return collector;
+    }
+
+    /**
+     * Adds the tokens of the filter's key range as a clause, so hits outside it are not collected.
+     * The bounds are inclusive; the collector still checks the exact key range.
+     */
+    protected Query getQueryUpdatedWithTokenRange(IndexSearcher searcher, Query query, ExtendedFilter filter) throws IOException {
+        if (!tableMapper.hasLongTokens) return query;
+        AbstractBounds<RowPosition> keyRange = filter.dataRange.keyRange();
+        Token min = baseCfs.partitioner.getMinimumToken();
+        Token left = keyRange.left.getToken();
+        Token right = keyRange.right.getToken();
+        if (left.equals(min) && right.equals(min)) return query;
+        if (!LuceneUtils.hasTokens(searcher.getIndexReader())) return query;
+        long lower = left.equals(min) ? Long.MIN_VALUE : TableMapper.tokenValue(left);
+        long upper = right.equals(min) ? Long.MAX_VALUE : TableMapper.tokenValue(right);
+        Query tokenRange;
+        if (lower <= upper) {
+            tokenRange = LuceneUtils.tokenRangeQuery(lower, upper);
+        } else {
+            //the range wraps around the ring
+            BooleanQuery.Builder wrapped = new BooleanQuery.Builder();
+            wrapped.add(LuceneUtils.tokenRangeQuery(lower, Long.MAX_VALUE), BooleanClause.Occur.SHOULD);
+            wrapped.add(LuceneUtils.tokenRangeQuery(Long.MIN_VALUE, upper), BooleanClause.Occur.SHOULD);
+            tokenRange = wrapped.build();
+        }
+        BooleanQuery.Builder finalQuery = new BooleanQuery.Builder();
+        finalQuery.add(query, BooleanClause.Occur.MUST);
+        finalQuery.add(tokenRange, BooleanClause.Occur.FILTER);
+        return finalQuery.build();
+    }
+
+    /**
+     * Unsorted count-stars only need the number of hits, see {@link IndexEntryCollector#isCounting()}.
+     */
+    protected boolean isCountStar(Search search) {
+        return search.sort(options) == null && search.function() instanceof AggregateFunction && ((AggregateFunction) search.function()).isCountStar();
+    }
+
+    /**
+     * For pages after the first of a sorted query, finds the lucene doc of the last row returned by the previous page.
+     * Cassandra restarts paging from that row, so it is read back from the paging range instead of being cached.
+     *
+     * @return the doc with its sort values, or null for the first page or when the row is no longer indexed.
+     */
+    protected FieldDoc getSortCursor(IndexSearcher searcher, ExtendedFilter filter, Search search) throws IOException {
+        org.apache.lucene.search.SortField[] sortFields = search.usesSorting() ? search.sort(options) : null;
+        if (sortFields == null) return null;
+        CellName lastClusteringKey = tableMapper.lastReturnedClusteringKey(filter.dataRange);
+        if (lastClusteringKey == null) return null;
+        ByteBuffer rowKey = ((DecoratedKey) filter.dataRange.startKey()).getKey();
+        String pkString = tableMapper.primaryKeyType.getString(tableMapper.primaryKey(rowKey, lastClusteringKey));
+        TopFieldCollector lastRow = TopFieldCollector.create(new Sort(sortFields), 1, true, false, false);
+        searcher.search(new TermQuery(LuceneUtils.primaryKeyTerm(pkString)), lastRow);
+        ScoreDoc[] scoreDocs = lastRow.topDocs().scoreDocs;
+        if (scoreDocs.length == 0) return null;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Resuming sorted search after [{}]", pkString);
+        }
+        return (FieldDoc) scoreDocs[0];
+    }
+
+    /**
+     * The number of hits to collect for a query. Functions which need every hit get the whole index,
+     * others only get the query limit plus a margin for stale entries.
+     */
+    protected int getResultsLimit(IndexSearcher searcher, ExtendedFilter filter, Function function, boolean collectAll) {
+        int maxDoc = Math.max(searcher.getIndexReader().maxDoc(), 1);
+        if (collectAll || function.needsAllResults()) {
+            return maxDoc;
+        }
+        long limit = (long) filter.currentLimit() + RESULTS_LIMIT_MARGIN;
+        return (int) Math.min(limit, maxDoc);
+    }
+
     protected IndexExpression matchThisIndex(List<IndexExpression> clause) {
         for (IndexExpression expression : clause) {
             ColumnDefinition cfDef = baseCfs.metadata.getColumnDefinition(expression.column);
@@ -206,7 +331,8 @@ public class SearchSupport extends SecondaryIndexSearcher {
 
     protected String getPartitionKeyString(ExtendedFilter mainFilter) {
         AbstractBounds<RowPosition> keyRange = mainFilter.dataRange.keyRange();
-        if (keyRange != null && keyRange.left != null && keyRange.left instanceof DecoratedKey) {
+        //pages after the first start at a key but may still end at a token bound
+        if (keyRange != null && keyRange.left instanceof DecoratedKey && keyRange.right instanceof DecoratedKey) {
             DecoratedKey left = (DecoratedKey) keyRange.left;
             DecoratedKey right = (DecoratedKey) keyRange.right;
             if (left.equals(right)) {
@@ -216,29 +342,6 @@ public class SearchSupport extends SecondaryIndexSearcher {
         return null;
     }
 
-    private boolean isPagingQuery(DataRange dataRange) {
-        return (dataRange instanceof DataRange.Paging);
-    }
-
-    private boolean isFirstPage(DataRange.Paging pageRange) {
-        try {
-            Composite start = (Composite) getPrivateProperty(pageRange, "firstPartitionColumnStart");
-            Composite finish = (Composite) getPrivateProperty(pageRange, "lastPartitionColumnFinish");
-            return (start == finish) && (start == Composites.EMPTY);
-        } catch (NoSuchFieldException e) {
-            //do nothing;
-        } catch (IllegalAccessException e) {
-            //do nothing
-        }
-        return false;
-    }
-
-    private Object getPrivateProperty(Object instance, String fieldName) throws NoSuchFieldException, IllegalAccessException {
-        Field field = instance.getClass().getDeclaredField(fieldName);
-        field.setAccessible(true);
-        return field.get(instance);
-    }
-
     public boolean deleteIfNotLatest(DecoratedKey decoratedKey, long timestamp, String pkString, ColumnFamily cf) throws IOException {
         if (deleteRowIfNotLatest(decoratedKey, cf)) return true;
         Cell lastColumn = null;
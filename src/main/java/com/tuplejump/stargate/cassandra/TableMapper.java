@@ -17,15 +17,27 @@
 package com.tuplejump.stargate.cassandra;
 
 import com.tuplejump.stargate.Fields;
+import com.tuplejump.stargate.lucene.IndexEntryCollector;
+import com.tuplejump.stargate.lucene.LuceneUtils;
+import com.tuplejump.stargate.lucene.Options;
 import com.tuplejump.stargate.lucene.query.function.Tuple;
 import org.apache.cassandra.config.CFMetaData;
 import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.db.composites.*;
+import org.apache.cassandra.db.filter.ColumnSlice;
+import org.apache.cassandra.db.filter.IDiskAtomFilter;
+import org.apache.cassandra.db.filter.SliceQueryFilter;
 import org.apache.cassandra.db.marshal.*;
+import org.apache.cassandra.dht.LongToken;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.utils.ByteBufferUtil;
 
+import org.apache.lucene.document.FieldType;
+
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -45,10 +57,12 @@ public class TableMapper {
     public final boolean isMetaColumn;
     public final ColumnDefinition primaryColumnDefinition;
     public final CFMetaData cfMetaData;
+    public final boolean hasLongTokens;
 
     public TableMapper(ColumnFamilyStore table, boolean isMetaColumn, ColumnDefinition primaryColumnDefinition) {
         this.table = table;
         this.cfMetaData = table.metadata;
+        this.hasLongTokens = table.partitioner instanceof Murmur3Partitioner;
         this.clusteringCType = table.getComparator();
         this.primaryKeyAbstractType = table.metadata.getKeyValidator();
         this.clusteringKeyType = table.getComparator().asAbstractType();
@@ -66,6 +80,17 @@ public class TableMapper {
         return table.partitioner.decorateKey(rowKey);
     }
 
+    /**
+     * Decorates a key with its indexed token instead of hashing it again. Only for {@link #hasLongTokens}.
+     */
+    public DecoratedKey decorateKey(long token, ByteBuffer rowKey) {
+        return new BufferDecoratedKey(new LongToken(token), rowKey);
+    }
+
+    public static long tokenValue(Token token) {
+        return ((LongToken) token).getTokenValue();
+    }
+
     public void load(Map<String, Integer> positions, Tuple tuple, Row row) {
         ColumnFamily cf = row.cf;
         ByteBuffer rowKey = row.key.getKey();
@@ -121,6 +146,51 @@ public class TableMapper {
     }
 
 
+    /**
+     * @return the columns a row is built from when the index covers the table, or null if some regular column
+     * has no doc values holding its exact value. The column of the index is left out when it has none.
+     * Tables with a default TTL are not covered, as their rows would mostly be read from the table once expired.
+     */
+    public List<ColumnDefinition> coveredColumns(Options options) {
+        if (clusteringCType.isDense() || !cfMetaData.staticColumns().isEmpty() || cfMetaData.getDefaultTimeToLive() > 0) return null;
+        List<ColumnDefinition> columns = new ArrayList<>();
+        for (ColumnDefinition column : cfMetaData.regularColumns()) {
+            String name = column.name.toString();
+            FieldType docValueType = options.fieldDocValueTypes.get(name);
+            if (docValueType == null && column.equals(primaryColumnDefinition)) continue;
+            if (docValueType == null || options.isObject(name) || !Fields.isReadableFromDocValue(column.type, docValueType)) {
+                return null;
+            }
+            columns.add(column);
+        }
+        return columns;
+    }
+
+    /**
+     * Builds the row of a hit from its doc values, see {@link #coveredColumns(Options)}. The cells get the
+     * latest write time of the indexed row.
+     */
+    public ColumnFamily rowFromIndex(IndexEntryCollector.IndexEntry entry, List<ColumnDefinition> columns) {
+        ColumnFamily row = ArrayBackedSortedColumns.factory.create(cfMetaData);
+        Composite prefix = start(entry.clusteringKey());
+        Long writeTime = entry.getLongOrNull(LuceneUtils.CF_TS_INDEXED);
+        long timestamp = writeTime == null ? 0 : writeTime;
+        row.addColumn(new BufferCell(clusteringCType.rowMarker(prefix), ByteBufferUtil.EMPTY_BYTE_BUFFER, timestamp));
+        for (ColumnDefinition column : columns) {
+            String name = column.name.toString();
+            ByteBuffer value;
+            if (Fields.hasNumericDocValue(column.type)) {
+                Long docValue = entry.getLongOrNull(name);
+                value = docValue == null ? null : Fields.fromNumericDocValue(column.type, docValue);
+            } else {
+                String docValue = entry.getStringOrNull(name);
+                value = docValue == null ? null : Fields.fromStringDocValue(column.type, docValue);
+            }
+            if (value != null) row.addColumn(new BufferCell(clusteringCType.create(prefix, column), value, timestamp));
+        }
+        return row;
+    }
+
     public Row getRowWithMetaColumn(ByteBuffer metaColumnValue) {
 
         if (isMetaColumn) {
@@ -182,7 +252,7 @@ public class TableMapper {
         return primaryKeyType.builder().add(rowKey).add(clusteringKey.toByteBuffer()).build();
     }
 
-    public CellName extractClusteringKey(CellName cellName) {
+    public CellName extractClusteringKey(Composite cellName) {
         int clusterColumns = table.metadata.clusteringColumns().size();
         Object[] components = new ByteBuffer[clusterColumns + 1];
         for (int i = 0; i < clusterColumns; i++) {
@@ -192,6 +262,25 @@ public class TableMapper {
         return clusteringCType.makeCellName(components);
     }
 
+    /**
+     * Cassandra resumes a paged range query from the last cell it returned, which is the start key of the range
+     * and the start of its column slice.
+     *
+     * @return the clustering key of that row, or null when the range is not a later page.
+     */
+    public CellName lastReturnedClusteringKey(DataRange dataRange) {
+        if (!(dataRange instanceof DataRange.Paging) || !(dataRange.startKey() instanceof DecoratedKey)) return null;
+        IDiskAtomFilter columnFilter = dataRange.columnFilter(((DecoratedKey) dataRange.startKey()).getKey());
+        if (!(columnFilter instanceof SliceQueryFilter)) return null;
+        for (ColumnSlice slice : ((SliceQueryFilter) columnFilter).slices) {
+            if (slice.start.isStatic()) continue;
+            //the last returned cell name has a column name after the clustering columns, unlike a clustering restriction
+            if (slice.start.size() <= cfMetaData.clusteringColumns().size()) return null;
+            return extractClusteringKey(slice.start);
+        }
+        return null;
+    }
+
     public CellName makeClusteringKey(ByteBuffer primaryKey) {
         ByteBuffer clusteringKeyBuf = primaryKeyType.extractLastComponent(primaryKey);
         return clusteringCType.cellFromByteBuffer(clusteringKeyBuf);
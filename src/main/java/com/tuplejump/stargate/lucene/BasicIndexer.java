@@ -16,20 +16,23 @@
 
 package com.tuplejump.stargate.lucene;
 
+import com.tuplejump.stargate.Stargate;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Field;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.index.Term;
+import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.util.Version;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -39,6 +42,9 @@ import java.util.concurrent.atomic.AtomicLong;
 public class BasicIndexer implements Indexer {
     private static final Logger logger = LoggerFactory.getLogger(BasicIndexer.class);
 
+    static final String COMMIT_LOG_SEGMENT = "commitlog_segment";
+    static final String COMMIT_LOG_POSITION = "commitlog_position";
+
     public static IndexWriterConfig.OpenMode OPEN_MODE = IndexWriterConfig.OpenMode.CREATE_OR_APPEND;
 
     protected File file;
@@ -59,12 +65,24 @@ public class BasicIndexer implements Indexer {
 
     protected SearcherManager searcherManager;
 
+    protected TrackingIndexWriter trackingWriter;
+
+    protected ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+
+    protected final AtomicLong lastWriteGeneration = new AtomicLong();
+
     protected AtomicLong records;
 
-    public BasicIndexer(AtomicLong records, Analyzer analyzer, String keyspaceName, String cfName, String indexName, String vNodeName) {
+    protected Properties properties;
+
+    protected SearcherFactory searcherFactory;
+
+    public BasicIndexer(AtomicLong records, Options options, CachingSearcherFactory searcherFactory, String keyspaceName, String cfName, String indexName, String vNodeName) {
         try {
             this.records = records;
-            init(analyzer, keyspaceName, cfName, indexName, vNodeName);
+            this.searcherFactory = searcherFactory;
+            this.properties = options.primary;
+            init(options.analyzer, keyspaceName, cfName, indexName, vNodeName);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -82,23 +100,90 @@ public class BasicIndexer implements Indexer {
             logger.debug(indexName + " Lucene version -" + Properties.luceneVersion);
         }
         indexWriter = getIndexWriter(Properties.luceneVersion);
-        searcherManager = new SearcherManager(indexWriter, true, new SearcherFactory());
+        searcherManager = new SearcherManager(indexWriter, true, searcherFactory);
+        trackingWriter = new TrackingIndexWriter(indexWriter);
+        if (properties.getReopenMaxStaleMillis() > 0) {
+            reopenThread = new ControlledRealTimeReopenThread<>(trackingWriter, searcherManager,
+                    properties.getReopenMaxStaleMillis() / 1000.0, properties.getReopenMinStaleMillis() / 1000.0);
+            reopenThread.setName("SG reopen " + indexName + "-" + vNodeName);
+            reopenThread.setDaemon(true);
+            reopenThread.start();
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info(indexName + " SG Index - Last commit at commit log position " + committedPosition());
+        }
     }
 
 
     private IndexWriter getIndexWriter(Version luceneV) throws IOException {
         file = LuceneUtils.getDirectory(keyspaceName, cfName, indexName, vNodeName);
         IndexWriterConfig config = new IndexWriterConfig(analyzer);
-        config.setRAMBufferSizeMB(128);
-//        config.setMaxBufferedDocs(128 * 1000);
+        config.setRAMBufferSizeMB(properties.getRamBufferSizeMB());
+        config.setMaxBufferedDocs(properties.getMaxBufferedDocs());
         //config.setInfoStream(System.out);
-        directory = FSDirectory.open(file.toPath());
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setMaxMergedSegmentMB(properties.getMaxMergedSegmentMB());
+        mergePolicy.setSegmentsPerTier(properties.getSegmentsPerTier());
+        mergePolicy.setFloorSegmentMB(properties.getFloorSegmentMB());
+        config.setMergePolicy(properties.isIndexSort() ? new SortingMergePolicy(mergePolicy, LuceneUtils.INDEX_SORT) : mergePolicy);
+        directory = openDirectory(file.toPath());
+        config.setMergeScheduler(mergeScheduler());
         if (logger.isInfoEnabled()) {
-            logger.info(indexName + " SG Index - Opened dir[" + file.getAbsolutePath() + "] - OpenMode[" + OPEN_MODE + "]");
+            logger.info(indexName + " SG Index - Opened dir[" + file.getAbsolutePath() + "] - Directory[" + directory + "] - OpenMode[" + OPEN_MODE + "]");
         }
         return new IndexWriter(directory, config);
     }
 
+    /**
+     * Merge threads and merge count are auto detected unless one of them is set.
+     * Lucene requires both to be set together, so maxMergeCount defaults to 5 more than the threads,
+     * and auto threads are detected the way lucene does it, capped at maxMergeCount.
+     */
+    private ConcurrentMergeScheduler mergeScheduler() throws IOException {
+        ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+        int maxMergeThreads = properties.getMaxMergeThreads();
+        int maxMergeCount = properties.getMaxMergeCount();
+        if (maxMergeThreads != ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS
+                || maxMergeCount != ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS) {
+            if (maxMergeThreads == ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS) {
+                int detected = IOUtils.spins(directory) ? 1 : Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+                maxMergeThreads = Math.min(detected, maxMergeCount);
+            } else if (maxMergeCount == ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS) {
+                maxMergeCount = maxMergeThreads + 5;
+            }
+            mergeScheduler.setMaxMergesAndThreads(maxMergeCount, maxMergeThreads);
+        }
+        if (!properties.isMergeIOThrottling()) {
+            mergeScheduler.disableAutoIOThrottle();
+        }
+        return mergeScheduler;
+    }
+
+    /**
+     * Opens the directory type set in the index options. fs lets lucene pick the best one for the platform.
+     * Small newly flushed segments are kept in RAM when nrtCachingMaxCachedMB is set.
+     */
+    private Directory openDirectory(Path path) throws IOException {
+        FSDirectory fsDirectory;
+        switch (properties.getDirectory()) {
+            case mmap:
+                fsDirectory = new MMapDirectory(path);
+                break;
+            case nio:
+                fsDirectory = new NIOFSDirectory(path);
+                break;
+            case simple:
+                fsDirectory = new SimpleFSDirectory(path);
+                break;
+            default:
+                fsDirectory = FSDirectory.open(path);
+        }
+        if (properties.getNrtCachingMaxCachedMB() > 0) {
+            return new NRTCachingDirectory(fsDirectory, properties.getNrtCachingMaxMergeSizeMB(), properties.getNrtCachingMaxCachedMB());
+        }
+        return fsDirectory;
+    }
+
     @Override
     public void insert(Iterable<Field> doc) {
         if (logger.isDebugEnabled())
@@ -106,7 +191,7 @@ public class BasicIndexer implements Indexer {
 
         try {
             records.incrementAndGet();
-            indexWriter.addDocument(doc);
+            written(trackingWriter.addDocument(doc));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -119,12 +204,26 @@ public class BasicIndexer implements Indexer {
 
         try {
             records.incrementAndGet();
-            indexWriter.updateDocument(term, doc);
+            written(trackingWriter.updateDocument(term, doc));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public void upsert(Map<Term, Iterable<Field>> docs) {
+        if (logger.isDebugEnabled())
+            logger.debug(indexName + " Upsert Indexing [" + docs.size() + "] docs");
+
+        try {
+            records.addAndGet(docs.size());
+            for (Map.Entry<Term, Iterable<Field>> doc : docs.entrySet()) {
+                written(trackingWriter.updateDocument(doc.getKey(), doc.getValue()));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
     @Override
     public void delete(Term... terms) {
@@ -138,9 +237,9 @@ public class BasicIndexer implements Indexer {
     }
 
     @Override
-    public void delete(Query q) {
+    public void delete(Query... queries) {
         try {
-            indexWriter.deleteDocuments(q);
+            written(trackingWriter.deleteDocuments(queries));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -164,13 +263,42 @@ public class BasicIndexer implements Indexer {
     @Override
     public IndexSearcher acquire() {
         try {
-            searcherManager.maybeRefreshBlocking();
+            if (reopenThread == null) {
+                searcherManager.maybeRefreshBlocking();
+            } else if (!properties.isNearRealTime()) {
+                //nothing to wait for if the searcher already has the last write
+                long generation = lastWriteGeneration.get();
+                if (generation > reopenThread.getSearchingGen()) waitForGeneration(generation);
+            }
             return searcherManager.acquire();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Records the generation of a write, so that searches only wait for a reopen when there are writes it has not seen.
+     */
+    private void written(long generation) {
+        while (true) {
+            long last = lastWriteGeneration.get();
+            if (last >= generation || lastWriteGeneration.compareAndSet(last, generation)) return;
+        }
+    }
+
+    /**
+     * Waits till the reopen thread makes the given write generation searchable.
+     */
+    private void waitForGeneration(long generation) {
+        try {
+            if (!reopenThread.waitForGeneration(generation, (int) Stargate.CATCH_UP_TIMEOUT)) {
+                logger.warn(indexName + " Reopen did not reach generation [" + generation + "] in [" + Stargate.CATCH_UP_TIMEOUT + "] ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
 
     @Override
     public boolean removeIndex() {
@@ -193,7 +321,7 @@ public class BasicIndexer implements Indexer {
             if (logger.isInfoEnabled()) {
                 logger.info("SG BasicIndexer - Truncating index - {}", indexName);
             }
-            indexWriter.deleteAll();
+            written(trackingWriter.deleteAll());
             return true;
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -247,15 +375,22 @@ public class BasicIndexer implements Indexer {
     }
 
     private void closeIndex() throws IOException {
+        if (reopenThread != null) reopenThread.close();
         indexWriter.close();
         analyzer.close();
     }
 
     @Override
-    public void commit() {
+    public void commit(ReplayPosition position) {
         try {
             if (logger.isInfoEnabled()) {
-                logger.info("SG BasicIndexer - Committing index - {}", indexName);
+                logger.info("SG BasicIndexer - Committing index - {} at {}", indexName, position);
+            }
+            if (position != null) {
+                Map<String, String> commitData = new HashMap<>();
+                commitData.put(COMMIT_LOG_SEGMENT, String.valueOf(position.segment));
+                commitData.put(COMMIT_LOG_POSITION, String.valueOf(position.position));
+                indexWriter.setCommitData(commitData);
             }
             indexWriter.commit();
         } catch (IOException e) {
@@ -263,6 +398,28 @@ public class BasicIndexer implements Indexer {
         }
     }
 
+    @Override
+    public ReplayPosition committedPosition() {
+        Map<String, String> commitData = indexWriter.getCommitData();
+        String segment = commitData.get(COMMIT_LOG_SEGMENT);
+        String position = commitData.get(COMMIT_LOG_POSITION);
+        if (segment == null || position == null) return ReplayPosition.NONE;
+        return new ReplayPosition(Long.parseLong(segment), Integer.parseInt(position));
+    }
+
+    @Override
+    public void forceMerge(int maxSegments) {
+        try {
+            if (logger.isInfoEnabled()) {
+                logger.info("SG BasicIndexer - Merging index - {} to {} segments", indexName, maxSegments);
+            }
+            indexWriter.forceMerge(maxSegments);
+            searcherManager.maybeRefreshBlocking();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static long calcTotalFileSize(Directory directory) throws Exception {
         long totalFileSize = 0L;
         String[] files = directory.listAll();
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.FrequencyTrackingRingBuffer;
+
+import java.io.IOException;
+
+/**
+ * User: satya
+ * Creates searchers which share one query cache for all the indexers of an index, so that
+ * repeated filters reuse their cached doc id sets. Without query cache options the searchers
+ * use the node wide lucene defaults.
+ */
+public class CachingSearcherFactory extends SearcherFactory {
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final double DEFAULT_MAX_RAM_MB = 32;
+    public static final int HISTORY_SIZE = 256;
+
+    private final QueryCache queryCache;
+    private final QueryCachingPolicy queryCachingPolicy;
+
+    public CachingSearcherFactory(Properties properties) {
+        int maxEntries = properties.getQueryCacheMaxEntries();
+        double maxRamMB = properties.getQueryCacheMaxRamMB();
+        if (maxEntries > 0 || maxRamMB > 0) {
+            queryCache = new LRUQueryCache(maxEntries > 0 ? maxEntries : DEFAULT_MAX_ENTRIES,
+                    (long) ((maxRamMB > 0 ? maxRamMB : DEFAULT_MAX_RAM_MB) * 1024 * 1024));
+        } else {
+            queryCache = IndexSearcher.getDefaultQueryCache();
+        }
+        int minUses = properties.getQueryCacheMinUses();
+        queryCachingPolicy = minUses > 0 ? new MinUsesCachingPolicy(minUses) : IndexSearcher.getDefaultQueryCachingPolicy();
+    }
+
+    @Override
+    public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
+        return configure(new IndexSearcher(reader));
+    }
+
+    /**
+     * @return the hits of the query cache, which is node wide when no query cache options are set.
+     */
+    public long queryCacheHits() {
+        return queryCache instanceof LRUQueryCache ? ((LRUQueryCache) queryCache).getHitCount() : 0;
+    }
+
+    public IndexSearcher configure(IndexSearcher searcher) {
+        searcher.setQueryCache(queryCache);
+        searcher.setQueryCachingPolicy(queryCachingPolicy);
+        return searcher;
+    }
+
+    /**
+     * Caches a query once it has been used the given number of times within the recent history of queries.
+     */
+    static class MinUsesCachingPolicy implements QueryCachingPolicy {
+        private final int minUses;
+        private final FrequencyTrackingRingBuffer recentlyUsed;
+
+        MinUsesCachingPolicy(int minUses) {
+            this.minUses = minUses;
+            this.recentlyUsed = new FrequencyTrackingRingBuffer(Math.max(HISTORY_SIZE, minUses), 0);
+        }
+
+        @Override
+        public void onUse(Query query) {
+            synchronized (recentlyUsed) {
+                recentlyUsed.add(query.hashCode());
+            }
+        }
+
+        @Override
+        public boolean shouldCache(Query query, LeafReaderContext context) throws IOException {
+            synchronized (recentlyUsed) {
+                return recentlyUsed.frequency(query.hashCode()) >= minUses;
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * User: satya
+ * Writes to an indexer which are held back to be applied together.
+ * Upserts of the same primary key are coalesced and the last one wins. Upserts and deletes are applied in the order they were made.
+ */
+public class IndexBatch {
+    protected final Indexer indexer;
+    protected final Map<Term, Iterable<Field>> upserts = new LinkedHashMap<>();
+    protected final List<Query> deletes = new ArrayList<>();
+
+    public IndexBatch(Indexer indexer) {
+        this.indexer = indexer;
+    }
+
+    public void upsert(Term term, Iterable<Field> doc) {
+        if (!deletes.isEmpty()) flush();
+        upserts.put(term, doc);
+    }
+
+    public void delete(Query query) {
+        if (!upserts.isEmpty()) flush();
+        deletes.add(query);
+    }
+
+    public int size() {
+        return upserts.size() + deletes.size();
+    }
+
+    public void flush() {
+        if (!upserts.isEmpty()) {
+            indexer.upsert(upserts);
+            upserts.clear();
+        }
+        if (!deletes.isEmpty()) {
+            indexer.delete(deletes.toArray(new Query[deletes.size()]));
+            deletes.clear();
+        }
+    }
+}
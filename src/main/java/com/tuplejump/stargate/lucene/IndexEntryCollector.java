@@ -23,13 +23,21 @@ import com.tuplejump.stargate.cassandra.TableMapper;
 import com.tuplejump.stargate.lucene.query.Search;
 import com.tuplejump.stargate.lucene.query.function.AggregateFunction;
 import com.tuplejump.stargate.lucene.query.function.Function;
+import com.tuplejump.stargate.lucene.query.function.Group;
+import com.tuplejump.stargate.lucene.query.function.Tuple;
+import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.composites.CellName;
+import org.apache.cassandra.db.filter.ExtendedFilter;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortingMergePolicy;
 import org.apache.lucene.search.*;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -38,7 +46,14 @@ import java.util.*;
 /**
  * User: satya
  * A custom lucene collector to retrieve index entries.
- * An IndexEntry reads from DocValues to construct the row key, primary key and timestamp info.
+ * An IndexEntry reads from DocValues to construct the row key, primary key and timestamp info, and only does so
+ * when they are first read, so hits which are not returned are never decoded.
+ * Unsorted searches of functions which need all the hits only buffer the doc ids of the hits in arrays, in doc order.
+ * Counts only count the hits, and grouped counts on doc values keep one hit and a count per group values of a segment.
+ * Other aggregates on doc values load each hit straight from the doc values of its segment as it is collected, and
+ * only the groups are kept.
+ * Sorted searches may start after the last entry of a previous page. Unsorted searches given a filter only keep the
+ * first maxResults entries in Cassandra order that fall inside the filter's range and after its last returned row.
  */
 public class IndexEntryCollector extends SimpleCollector {
 
@@ -46,50 +61,104 @@ public class IndexEntryCollector extends SimpleCollector {
     LeafFieldComparator[] comparators;
     int docBase;
     int totalHits;
+    int candidateHits;
     boolean queueFull;
     IndexEntry bottom;
     Scorer scorer;
     int numHits;
     final int[] reverseMul;
-    SortedDocValues pkNames;
-    SortedDocValues primaryKeys;
-    SortedDocValues rowKeys;
+    Leaf leaf;
+    final List<Leaf> leaves = new ArrayList<>();
     List<String> numericDocValueNamesToFetch;
     List<String> binaryDocValueNamesToFetch;
-    Map<String, NumericDocValues> numericDocValuesMap = new HashMap<>();
-    Map<String, SortedDocValues> stringDocValues = new HashMap<>();
     Options options;
     List<IndexEntry> indexEntries;
     TreeMultimap<DecoratedKey, IndexEntry> indexEntryTreeMultiMap;
     TableMapper tableMapper;
     public final boolean isSorted;
+    final FieldDoc after;
+    final ExtendedFilter filter;
+    final TreeSet<IndexEntry> keyOrderedEntries;
+    final CellName lastReturnedClusteringKey;
+    List<IndexEntry> mergedEntries;
+    final HitBuffer hitBuffer;
+    final List<HitBuffer> hitBuffers;
+    final boolean countOnly;
+    final List<String> groupFields;
+    GroupKey groupKey;
+    final AggregateFunction aggregateFunction;
+    final Group aggregatedGroup;
+    Tuple tuple;
 
 
     boolean canByPassRowFetch;
+    List<ColumnDefinition> coveredColumns;
 
     public boolean canByPassRowFetch() {
         return canByPassRowFetch;
     }
 
+    /**
+     * Loads the doc values of the columns, the write time and the expiry with each hit, so that its row can be
+     * built from the index. Must be called before searching.
+     */
+    public void coverColumns(List<ColumnDefinition> columns) {
+        coveredColumns = columns;
+        numericDocValueNamesToFetch.add(LuceneUtils.CF_TS_INDEXED);
+        numericDocValueNamesToFetch.add(LuceneUtils.CF_EXPIRY);
+        for (ColumnDefinition column : columns) {
+            String field = column.name.toString();
+            if (options.fieldDocValueTypes.get(field).numericType() != null)
+                numericDocValueNamesToFetch.add(field);
+            else
+                binaryDocValueNamesToFetch.add(field);
+        }
+    }
+
+    /**
+     * @return the columns of the rows to build from the index, or null if rows are read from Cassandra.
+     */
+    public List<ColumnDefinition> coveredColumns() {
+        return coveredColumns;
+    }
+
     public int getTotalHits() {
         return totalHits;
     }
 
+    /**
+     * @return true if this sorted search resumes after the last entry of a previous page.
+     */
+    public boolean isResumed() {
+        return after != null;
+    }
+
+    /**
+     * @return true if the query had more hits than this collector could hold.
+     */
+    public boolean isTruncated() {
+        return candidateHits > numHits;
+    }
+
     public IndexEntryCollector(TableMapper tableMapper, Search search, Options options, int maxResults) throws IOException {
+        this(tableMapper, search, options, maxResults, null, null);
+    }
+
+    /**
+     * @param after  for sorted searches, the entry after which to collect. null to collect from the start.
+     * @param filter for unsorted searches, the filter whose key range restricts the hits. Hits are then kept in
+     *               Cassandra order. null to collect by score.
+     */
+    public IndexEntryCollector(TableMapper tableMapper, Search search, Options options, int maxResults, FieldDoc after, ExtendedFilter filter) throws IOException {
         Function function = search.function();
         this.tableMapper = tableMapper;
         this.options = options;
         org.apache.lucene.search.SortField[] sortFields = search.usesSorting() ? search.sort(options) : null;
-        if (sortFields == null) {
-            hitQueue = FieldValueHitQueue.create(new org.apache.lucene.search.SortField[]{org.apache.lucene.search.SortField.FIELD_SCORE}, maxResults);
-            isSorted = false;
-        } else {
-            hitQueue = FieldValueHitQueue.create(sortFields, maxResults);
-            isSorted = true;
-        }
-
+        isSorted = sortFields != null;
+        this.after = isSorted ? after : null;
+        this.filter = isSorted ? null : filter;
+        lastReturnedClusteringKey = this.filter == null ? null : tableMapper.lastReturnedClusteringKey(this.filter.dataRange);
         numHits = maxResults;
-        reverseMul = hitQueue.getReverseMul();
         numericDocValueNamesToFetch = new ArrayList<>();
         binaryDocValueNamesToFetch = new ArrayList<>();
 
@@ -130,6 +199,51 @@ public class IndexEntryCollector extends SimpleCollector {
                 addToFetch(aggregateFields.iterator(), aggDocValueTypes);
             }
         }
+        boolean collectsAll = this.filter == null && !isSorted && function.needsAllResults();
+        aggregateFunction = function instanceof AggregateFunction ? (AggregateFunction) function : null;
+        countOnly = collectsAll && aggregateFunction != null && aggregateFunction.isCountStar();
+        groupFields = collectsAll && !countOnly && canByPassRowFetch && aggregateFunction.isCountOnly() ? aggregateFunction.getGroupByFields() : null;
+        if (groupFields != null) groupKey = new GroupKey(groupFields.size());
+        boolean aggregating = collectsAll && !countOnly && groupFields == null && canByPassRowFetch;
+        aggregatedGroup = aggregating ? aggregateFunction.newGroup() : null;
+        if (aggregating) tuple = aggregateFunction.createTuple(options);
+        boolean buffered = collectsAll && !countOnly && groupFields == null && !aggregating;
+        hitBuffer = buffered ? new HitBuffer(leaves) : null;
+        hitBuffers = buffered ? new ArrayList<>(Collections.singletonList(hitBuffer)) : null;
+        if (this.filter != null) {
+            hitQueue = null;
+            reverseMul = null;
+            keyOrderedEntries = new TreeSet<>(new Comparator<IndexEntry>() {
+                @Override
+                public int compare(IndexEntry o1, IndexEntry o2) {
+                    int cmp = o1.decoratedKey().compareTo(o2.decoratedKey());
+                    return cmp != 0 ? cmp : IndexEntryCollector.this.tableMapper.clusteringCType.compare(o1.clusteringKey(), o2.clusteringKey());
+                }
+            });
+        } else if (collectsAll) {
+            hitQueue = null;
+            reverseMul = null;
+            keyOrderedEntries = null;
+        } else {
+            if (isSorted) {
+                hitQueue = FieldValueHitQueue.create(sortFields, maxResults);
+            } else {
+                hitQueue = FieldValueHitQueue.create(new org.apache.lucene.search.SortField[]{org.apache.lucene.search.SortField.FIELD_SCORE}, maxResults);
+            }
+            reverseMul = hitQueue.getReverseMul();
+            keyOrderedEntries = null;
+            if (this.after != null) {
+                FieldComparator<?>[] fieldComparators = hitQueue.getComparators();
+                for (int i = 0; i < fieldComparators.length; i++) {
+                    setTopValue(fieldComparators[i], this.after.fields[i]);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void setTopValue(FieldComparator<T> comparator, Object value) {
+        comparator.setTopValue((T) value);
     }
 
     private FieldType getDocValueType(Options options, String field) {
@@ -154,12 +268,150 @@ public class IndexEntryCollector extends SimpleCollector {
         }
     }
 
+    /**
+     * Adds the hits of collectors which collected the other slices of the segments for the same search,
+     * keeping the best maxResults of them.
+     */
+    public void merge(List<IndexEntryCollector> parts, int maxResults) {
+        numHits = maxResults;
+        List<IndexEntry> entries = hitQueue == null ? null : new ArrayList<>(rankedEntries());
+        for (IndexEntryCollector part : parts) {
+            totalHits += part.totalHits;
+            candidateHits += part.candidateHits;
+            if (hitBuffers != null) {
+                hitBuffers.addAll(part.hitBuffers);
+            } else if (groupFields != null) {
+                leaves.addAll(part.leaves);
+            } else if (aggregatedGroup != null) {
+                aggregatedGroup.merge(part.aggregatedGroup);
+            } else if (keyOrderedEntries != null) {
+                keyOrderedEntries.addAll(part.keyOrderedEntries);
+            } else if (hitQueue != null) {
+                entries.addAll(part.rankedEntries());
+            }
+        }
+        if (hitQueue == null && keyOrderedEntries == null) return;
+        if (keyOrderedEntries != null) {
+            while (keyOrderedEntries.size() > numHits) {
+                keyOrderedEntries.pollLast();
+            }
+            return;
+        }
+        //entries of different slices are compared by their sort values, as their comparator slots are not shared
+        final FieldComparator<?>[] fieldComparators = hitQueue.getComparators();
+        Collections.sort(entries, new Comparator<IndexEntry>() {
+            @Override
+            public int compare(IndexEntry o1, IndexEntry o2) {
+                for (int i = 0; i < fieldComparators.length; i++) {
+                    int c = reverseMul[i] * compareValues(fieldComparators[i], o1.sortValues[i], o2.sortValues[i]);
+                    if (c != 0) return c;
+                }
+                return Integer.compare(o1.doc, o2.doc);
+            }
+        });
+        mergedEntries = entries.size() > numHits ? new ArrayList<>(entries.subList(0, numHits)) : entries;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> int compareValues(FieldComparator<T> comparator, Object first, Object second) {
+        return comparator.compareValues((T) first, (T) second);
+    }
+
+    /**
+     * Pops the hit queue, most competitive first, keeping the sort values of each entry for a merge.
+     */
+    private List<IndexEntry> rankedEntries() {
+        FieldComparator<?>[] fieldComparators = hitQueue.getComparators();
+        IndexEntry[] entries = new IndexEntry[hitQueue.size()];
+        for (int i = entries.length - 1; i >= 0; i--) {
+            IndexEntry entry = hitQueue.pop();
+            entry.sortValues = new Object[fieldComparators.length];
+            for (int j = 0; j < fieldComparators.length; j++) {
+                entry.sortValues[j] = fieldComparators[j].value(entry.slot);
+            }
+            entries[i] = entry;
+        }
+        return Arrays.asList(entries);
+    }
+
+    /**
+     * @return the number of entries, without decoding them.
+     */
+    public int hitCount() {
+        if (isCounting()) return totalHits;
+        if (hitBuffers == null) return docs().size();
+        int count = 0;
+        for (HitBuffer buffer : hitBuffers) {
+            count += buffer.size;
+        }
+        return count;
+    }
+
+    private List<IndexEntry> bufferedEntries() {
+        List<IndexEntry> entries = new ArrayList<>(hitCount());
+        for (HitBuffer buffer : hitBuffers) {
+            for (int i = 0; i < buffer.size; i++) {
+                entries.add(new IndexEntry(buffer.leaves.get(buffer.leafOrds[i]), buffer.docs[i], 0, buffer.scores[i]));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Counting and aggregating collectors keep no entries.
+     */
+    public boolean isCounting() {
+        return countOnly || groupFields != null || aggregatedGroup != null;
+    }
+
+    public boolean isAggregating() {
+        return aggregatedGroup != null;
+    }
+
+    /**
+     * @return the groups of the aggregates of all the hits, for an aggregating collector.
+     */
+    public Group aggregatedGroup() {
+        return aggregatedGroup;
+    }
+
+    public boolean isGroupCounting() {
+        return groupFields != null;
+    }
+
+    /**
+     * For counts, adds hits counted without collecting them.
+     */
+    public void addCountedHits(int hits) {
+        totalHits += hits;
+        candidateHits += hits;
+    }
+
+    public List<GroupCount> groupCounts() {
+        List<GroupCount> groupCounts = new ArrayList<>();
+        for (Leaf leaf : leaves) {
+            groupCounts.addAll(leaf.groupCounts.values());
+        }
+        return groupCounts;
+    }
+
     public List<IndexEntry> docs() {
         if (indexEntries == null) {
-            indexEntries = new ArrayList<>();
-            IndexEntry entry;
-            while ((entry = hitQueue.pop()) != null) {
-                indexEntries.add(entry);
+            if (isCounting()) {
+                indexEntries = Collections.emptyList();
+            } else if (hitBuffers != null) {
+                indexEntries = bufferedEntries();
+            } else if (mergedEntries != null) {
+                indexEntries = mergedEntries;
+            } else if (keyOrderedEntries != null) {
+                indexEntries = new ArrayList<>(keyOrderedEntries);
+            } else {
+                // the queue pops the least competitive entry first
+                IndexEntry[] entries = new IndexEntry[hitQueue.size()];
+                for (int i = entries.length - 1; i >= 0; i--) {
+                    entries[i] = hitQueue.pop();
+                }
+                indexEntries = Arrays.asList(entries);
             }
         }
         return indexEntries;
@@ -171,12 +423,19 @@ public class IndexEntryCollector extends SimpleCollector {
             indexEntryTreeMultiMap = TreeMultimap.create(Ordering.natural(), new Comparator<IndexEntry>() {
                 @Override
                 public int compare(IndexEntry o1, IndexEntry o2) {
-                    return tableMapper.clusteringCType.compare(o1.clusteringKey, o2.clusteringKey);
+                    return tableMapper.clusteringCType.compare(o1.clusteringKey(), o2.clusteringKey());
                 }
             });
-            IndexEntry entry;
-            while ((entry = hitQueue.pop()) != null) {
-                indexEntryTreeMultiMap.put(entry.decoratedKey, entry);
+            Collection<IndexEntry> entries = isCounting() ? Collections.<IndexEntry>emptyList() : hitBuffers != null ? bufferedEntries() : mergedEntries != null ? mergedEntries : keyOrderedEntries;
+            if (entries != null) {
+                for (IndexEntry entry : entries) {
+                    indexEntryTreeMultiMap.put(entry.decoratedKey(), entry);
+                }
+            } else {
+                IndexEntry entry;
+                while ((entry = hitQueue.pop()) != null) {
+                    indexEntryTreeMultiMap.put(entry.decoratedKey(), entry);
+                }
             }
 
         }
@@ -187,17 +446,23 @@ public class IndexEntryCollector extends SimpleCollector {
     @Override
     protected void doSetNextReader(LeafReaderContext context) throws IOException {
         docBase = context.docBase;
-        comparators = hitQueue.getComparators(context);
-        pkNames = LuceneUtils.getPKNameDocValues(context.reader());
-        primaryKeys = LuceneUtils.getPKBytesDocValues(context.reader());
-        rowKeys = LuceneUtils.getRKBytesDocValues(context.reader());
-        for (String docValName : numericDocValueNamesToFetch) {
-            numericDocValuesMap.put(docValName, context.reader().getNumericDocValues(docValName));
+        comparators = hitQueue == null ? new LeafFieldComparator[0] : hitQueue.getComparators(context);
+        leaf = new Leaf(context.docBase, context.reader());
+        DocValues docValues = leaf.collected;
+        leaf.inKeyOrder = filter != null && docValues.tokens != null && options.primary.isIndexSort()
+                && SortingMergePolicy.isSorted(context.reader(), LuceneUtils.INDEX_SORT);
+        if (aggregatedGroup != null) {
+            leaf.tupleLoader = aggregateFunction.leafLoader(docValues.numericDocValues, docValues.stringDocValues);
         }
-        for (String docValName : binaryDocValueNamesToFetch) {
-            stringDocValues.put(docValName, context.reader().getSortedDocValues(docValName));
+        if (groupFields != null) {
+            leaf.groupNumerics = new NumericDocValues[groupFields.size()];
+            leaf.groupStrings = new SortedDocValues[groupFields.size()];
+            for (int i = 0; i < groupFields.size(); i++) {
+                leaf.groupNumerics[i] = docValues.numericDocValues.get(groupFields.get(i));
+                leaf.groupStrings[i] = docValues.stringDocValues.get(groupFields.get(i));
+            }
         }
-
+        leaves.add(leaf);
     }
 
     @Override
@@ -212,6 +477,34 @@ public class IndexEntryCollector extends SimpleCollector {
     @Override
     public void collect(int doc) throws IOException {
         ++totalHits;
+        if (countOnly) {
+            ++candidateHits;
+            return;
+        }
+        if (groupFields != null) {
+            ++candidateHits;
+            countGroup(doc);
+            return;
+        }
+        if (aggregatedGroup != null) {
+            ++candidateHits;
+            leaf.tupleLoader.load(tuple, doc);
+            aggregatedGroup.addTuple(tuple);
+            return;
+        }
+        if (hitBuffer != null) {
+            ++candidateHits;
+            hitBuffer.add(leaves.size() - 1, doc, scorer.score());
+            return;
+        }
+        if (keyOrderedEntries != null) {
+            collectInKeyOrder(doc);
+            return;
+        }
+        if (after != null && !isAfter(doc)) {
+            return;
+        }
+        ++candidateHits;
         if (queueFull) {
             // Fastmatch: return if this hit is not competitive
             for (int i = 0; ; i++) {
@@ -245,7 +538,7 @@ public class IndexEntryCollector extends SimpleCollector {
             }
         } else {
             // Startup transient: queue hasn't gathered numHits yet
-            final int slot = totalHits - 1;
+            final int slot = candidateHits - 1;
             // Copy hit into queue
             for (int i = 0; i < comparators.length; i++) {
                 comparators[i].copy(slot, doc);
@@ -262,6 +555,78 @@ public class IndexEntryCollector extends SimpleCollector {
         }
     }
 
+    private void countGroup(int doc) {
+        for (int i = 0; i < groupKey.values.length; i++) {
+            NumericDocValues numerics = leaf.groupNumerics[i];
+            SortedDocValues strings = leaf.groupStrings[i];
+            groupKey.values[i] = numerics != null ? numerics.get(doc) : strings != null ? strings.getOrd(doc) : -1;
+        }
+        groupKey.rehash();
+        GroupCount groupCount = leaf.groupCounts.get(groupKey);
+        if (groupCount == null) {
+            groupCount = new GroupCount(new IndexEntry(leaf, doc, 0, 0));
+            leaf.groupCounts.put(groupKey.copy(), groupCount);
+        }
+        groupCount.count++;
+    }
+
+    /**
+     * Same check as lucene's paging collector. Docs with sort values equal to the previous page's last entry
+     * are ordered by doc id.
+     */
+    private DecoratedKey decorateKey(DocValues docValues, int doc, ByteBuffer rowKey) {
+        if (docValues.tokens == null) return tableMapper.decorateKey(rowKey);
+        return tableMapper.decorateKey(docValues.tokens.get(doc), rowKey);
+    }
+
+    private boolean isAfter(int doc) throws IOException {
+        for (int i = 0; i < comparators.length; i++) {
+            final int c = reverseMul[i] * comparators[i].compareTop(doc);
+            if (c > 0) {
+                // Already collected on a previous page
+                return false;
+            } else if (c < 0) {
+                return true;
+            }
+        }
+        return docBase + doc > after.doc;
+    }
+
+    private void collectInKeyOrder(int doc) throws IOException {
+        ByteBuffer rowKey = LuceneUtils.byteBufferDocValue(leaf.collected.rowKeys, doc);
+        DecoratedKey decoratedKey = decorateKey(leaf.collected, doc, rowKey);
+        if (!filter.dataRange.contains(decoratedKey)) {
+            return;
+        }
+        if (queueFull && decoratedKey.compareTo(bottom.decoratedKey()) > 0) {
+            ++candidateHits;
+            //the rest of a segment sorted by the index sort is past the bottom as well
+            if (leaf.inKeyOrder) throw new CollectionTerminatedException();
+            return;
+        }
+        ByteBuffer primaryKey = LuceneUtils.byteBufferDocValue(leaf.collected.primaryKeys, doc);
+        CellName clusteringKey = tableMapper.makeClusteringKey(primaryKey);
+        if (!filter.columnFilter(rowKey).maySelectPrefix(tableMapper.clusteringCType, clusteringKey.start())) {
+            return;
+        }
+        if (lastReturnedClusteringKey != null && decoratedKey.equals(filter.dataRange.startKey())
+                && tableMapper.clusteringCType.compare(clusteringKey, lastReturnedClusteringKey) <= 0) {
+            // Returned by the previous page
+            return;
+        }
+        ++candidateHits;
+        if (queueFull) {
+            int cmp = decoratedKey.compareTo(bottom.decoratedKey());
+            if (cmp == 0) cmp = tableMapper.clusteringCType.compare(clusteringKey, bottom.clusteringKey());
+            if (cmp >= 0) return;
+            keyOrderedEntries.pollLast();
+        }
+        final float score = scorer.score();
+        keyOrderedEntries.add(new IndexEntry(leaf, doc, 0, score, rowKey, decoratedKey, primaryKey, clusteringKey));
+        queueFull = keyOrderedEntries.size() >= numHits;
+        bottom = keyOrderedEntries.last();
+    }
+
     final void updateBottom(int slot, int doc, float score) throws IOException {
         hitQueue.pop();
         bottom = getIndexEntry(slot, doc, score);
@@ -271,24 +636,11 @@ public class IndexEntryCollector extends SimpleCollector {
     final void add(int slot, int doc, float score) throws IOException {
         IndexEntry entry = getIndexEntry(slot, doc, score);
         bottom = hitQueue.add(entry);
-        queueFull = (totalHits == numHits);
+        queueFull = (candidateHits == numHits);
     }
 
-    IndexEntry getIndexEntry(int slot, int doc, float score) throws IOException {
-        String pkName = LuceneUtils.primaryKeyName(pkNames, doc);
-        ByteBuffer primaryKey = LuceneUtils.byteBufferDocValue(primaryKeys, doc);
-        ByteBuffer rowKey = LuceneUtils.byteBufferDocValue(rowKeys, doc);
-        Map<String, Number> numericDocValues = new HashMap<>();
-        Map<String, String> binaryDocValues = new HashMap<>();
-        for (Map.Entry<String, NumericDocValues> entry : numericDocValuesMap.entrySet()) {
-            Type type = AggregateFunction.getLuceneType(options, entry.getKey());
-            Number number = LuceneUtils.numericDocValue(entry.getValue(), doc, type);
-            numericDocValues.put(entry.getKey(), number);
-        }
-        for (Map.Entry<String, SortedDocValues> entry : stringDocValues.entrySet()) {
-            binaryDocValues.put(entry.getKey(), LuceneUtils.stringDocValue(entry.getValue(), doc));
-        }
-        return new IndexEntry(rowKey, pkName, primaryKey, slot, docBase + doc, score, numericDocValues, binaryDocValues);
+    IndexEntry getIndexEntry(int slot, int doc, float score) {
+        return new IndexEntry(leaf, doc, slot, score);
     }
 
     @Override
@@ -297,44 +649,234 @@ public class IndexEntryCollector extends SimpleCollector {
     }
 
 
+    /**
+     * A segment, which entries of the segment decode from.
+     * Segment readers cache doc values per thread and the instances are not thread safe, so the doc values of the
+     * collecting thread are only used on it. Entries decoded on another thread, after slices are merged, use doc
+     * values got again from the reader on that thread.
+     */
+    final class Leaf {
+        final int docBase;
+        final LeafReader reader;
+        final Thread collectingThread;
+        final DocValues collected;
+        Thread decodingThread;
+        DocValues decoded;
+        boolean inKeyOrder;
+        final Map<GroupKey, GroupCount> groupCounts = new HashMap<>();
+        NumericDocValues[] groupNumerics;
+        SortedDocValues[] groupStrings;
+        AggregateFunction.LeafLoader tupleLoader;
+
+        Leaf(int docBase, LeafReader reader) throws IOException {
+            this.docBase = docBase;
+            this.reader = reader;
+            collectingThread = Thread.currentThread();
+            collected = new DocValues(reader);
+        }
+
+        /**
+         * Entries are decoded by one thread at a time, once their search is done.
+         */
+        DocValues docValues() {
+            Thread current = Thread.currentThread();
+            if (current == collectingThread) return collected;
+            if (current != decodingThread) {
+                try {
+                    decoded = new DocValues(reader);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                decodingThread = current;
+            }
+            return decoded;
+        }
+    }
+
+    /**
+     * The doc values of a segment, as got by one thread.
+     */
+    final class DocValues {
+        final SortedDocValues pkNames;
+        final SortedDocValues primaryKeys;
+        final SortedDocValues rowKeys;
+        final NumericDocValues tokens;
+        final Map<String, NumericDocValues> numericDocValues = new HashMap<>();
+        final Map<String, SortedDocValues> stringDocValues = new HashMap<>();
+        final Map<String, Bits> docsWithField = new HashMap<>();
+
+        DocValues(LeafReader reader) throws IOException {
+            pkNames = LuceneUtils.getPKNameDocValues(reader);
+            primaryKeys = LuceneUtils.getPKBytesDocValues(reader);
+            rowKeys = LuceneUtils.getRKBytesDocValues(reader);
+            tokens = tableMapper.hasLongTokens ? LuceneUtils.getTokenDocValues(reader) : null;
+            for (String docValName : numericDocValueNamesToFetch) {
+                numericDocValues.put(docValName, reader.getNumericDocValues(docValName));
+                if (coveredColumns != null) docsWithField.put(docValName, reader.getDocsWithField(docValName));
+            }
+            for (String docValName : binaryDocValueNamesToFetch) {
+                stringDocValues.put(docValName, reader.getSortedDocValues(docValName));
+            }
+        }
+    }
+
+    /**
+     * The numeric values or segment ordinals of the group fields of a hit.
+     */
+    static final class GroupKey {
+        final long[] values;
+        int hash;
+
+        GroupKey(int size) {
+            values = new long[size];
+        }
+
+        void rehash() {
+            hash = Arrays.hashCode(values);
+        }
+
+        GroupKey copy() {
+            GroupKey copy = new GroupKey(values.length);
+            System.arraycopy(values, 0, copy.values, 0, values.length);
+            copy.hash = hash;
+            return copy;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof GroupKey && Arrays.equals(values, ((GroupKey) obj).values);
+        }
+    }
+
+    /**
+     * A hit with the group values of a segment, and the number of hits with them.
+     */
+    public static final class GroupCount {
+        public final IndexEntry entry;
+        public long count;
+
+        GroupCount(IndexEntry entry) {
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Hits as segment relative doc ids, segments and scores in parallel arrays.
+     */
+    static final class HitBuffer {
+        final List<Leaf> leaves;
+        int size;
+        int[] docs = new int[16];
+        int[] leafOrds = new int[16];
+        float[] scores = new float[16];
+
+        HitBuffer(List<Leaf> leaves) {
+            this.leaves = leaves;
+        }
+
+        void add(int leafOrd, int doc, float score) {
+            if (size == docs.length) {
+                int length = ArrayUtil.oversize(size + 1, Integer.BYTES);
+                docs = Arrays.copyOf(docs, length);
+                leafOrds = Arrays.copyOf(leafOrds, length);
+                scores = Arrays.copyOf(scores, length);
+            }
+            docs[size] = doc;
+            leafOrds[size] = leafOrd;
+            scores[size] = score;
+            size++;
+        }
+    }
+
     public class IndexEntry extends FieldValueHitQueue.Entry {
-        public final String pkName;
-        public final ByteBuffer primaryKey;
-        public final ByteBuffer rowKey;
+        final Leaf leaf;
+        final int leafDoc;
         public float score;
-        Map<String, Number> numericDocValuesMap;
-        Map<String, String> binaryDocValuesMap;
-        public final CellName clusteringKey;
-        public final DecoratedKey decoratedKey;
-
-        public IndexEntry(ByteBuffer rowKey, String pkName, ByteBuffer primaryKey,
-                          int slot, int doc, float score,
-                          Map<String, Number> numericDocValuesMap,
-                          Map<String, String> binaryDocValuesMap) {
-            super(slot, doc, score);
+        Object[] sortValues;
+        private String pkName;
+        private ByteBuffer primaryKey;
+        private ByteBuffer rowKey;
+        private CellName clusteringKey;
+        private DecoratedKey decoratedKey;
+
+        IndexEntry(Leaf leaf, int leafDoc, int slot, float score) {
+            super(slot, leaf.docBase + leafDoc, score);
+            this.leaf = leaf;
+            this.leafDoc = leafDoc;
+            this.score = score;
+        }
+
+        IndexEntry(Leaf leaf, int leafDoc, int slot, float score,
+                   ByteBuffer rowKey, DecoratedKey decoratedKey, ByteBuffer primaryKey, CellName clusteringKey) {
+            this(leaf, leafDoc, slot, score);
             this.rowKey = rowKey;
-            this.pkName = pkName;
+            this.decoratedKey = decoratedKey;
             this.primaryKey = primaryKey;
-            this.clusteringKey = tableMapper.makeClusteringKey(primaryKey);
-            this.decoratedKey = tableMapper.decorateKey(rowKey);
+            this.clusteringKey = clusteringKey;
+        }
 
-            this.score = score;
-            this.binaryDocValuesMap = binaryDocValuesMap;
-            this.numericDocValuesMap = numericDocValuesMap;
+        public String pkName() {
+            if (pkName == null) pkName = LuceneUtils.primaryKeyName(leaf.docValues().pkNames, leafDoc);
+            return pkName;
+        }
+
+        public ByteBuffer primaryKey() {
+            if (primaryKey == null) primaryKey = LuceneUtils.byteBufferDocValue(leaf.docValues().primaryKeys, leafDoc);
+            return primaryKey;
         }
 
+        public ByteBuffer rowKey() {
+            if (rowKey == null) rowKey = LuceneUtils.byteBufferDocValue(leaf.docValues().rowKeys, leafDoc);
+            return rowKey;
+        }
+
+        public CellName clusteringKey() {
+            if (clusteringKey == null) clusteringKey = tableMapper.makeClusteringKey(primaryKey());
+            return clusteringKey;
+        }
+
+        public DecoratedKey decoratedKey() {
+            if (decoratedKey == null) decoratedKey = decorateKey(leaf.docValues(), leafDoc, rowKey());
+            return decoratedKey;
+        }
 
         public Number getNumber(String field) {
-            return numericDocValuesMap.get(field);
+            Type type = AggregateFunction.getLuceneType(options, field);
+            return LuceneUtils.numericDocValue(leaf.docValues().numericDocValues.get(field), leafDoc, type);
         }
 
         public String getString(String field) {
-            return binaryDocValuesMap.get(field);
+            return LuceneUtils.stringDocValue(leaf.docValues().stringDocValues.get(field), leafDoc);
+        }
+
+        /**
+         * @return the numeric doc value as written, or null if the hit has none. Only for covered columns.
+         */
+        public Long getLongOrNull(String field) {
+            DocValues docValues = leaf.docValues();
+            Bits docsWithField = docValues.docsWithField.get(field);
+            if (docsWithField == null || !docsWithField.get(leafDoc)) return null;
+            return docValues.numericDocValues.get(field).get(leafDoc);
+        }
+
+        /**
+         * @return the string doc value, or null if the hit has none.
+         */
+        public String getStringOrNull(String field) {
+            SortedDocValues docValues = leaf.docValues().stringDocValues.get(field);
+            if (docValues == null) return null;
+            int ord = docValues.getOrd(leafDoc);
+            return ord < 0 ? null : docValues.lookupOrd(ord).utf8ToString();
         }
 
         @Override
         public String toString() {
-            return super.toString() + "pkName[" + pkName + "]";
+            return super.toString() + "pkName[" + pkName() + "]";
         }
     }
 
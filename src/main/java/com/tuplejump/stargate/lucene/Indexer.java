@@ -16,12 +16,15 @@
 
 package com.tuplejump.stargate.lucene;
 
+import org.apache.cassandra.db.commitlog.ReplayPosition;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 
+import java.util.Map;
+
 /**
  * User: satya
  * An interface for a stargate indexer.
@@ -37,7 +40,21 @@ public interface Indexer {
 
     public long approxRowCount();
 
-    public void commit();
+    /**
+     * Commits the index, recording the commit log position it is durable up to.
+     * A null position keeps the position recorded by the last commit.
+     */
+    public void commit(ReplayPosition position);
+
+    /**
+     * The commit log position recorded with the last commit, or ReplayPosition.NONE.
+     */
+    public ReplayPosition committedPosition();
+
+    /**
+     * Merges the index down to at most the given number of segments and makes the merged segments searchable.
+     */
+    public void forceMerge(int maxSegments);
 
     public void close();
 
@@ -45,9 +62,14 @@ public interface Indexer {
 
     void upsert(Term term,Iterable<Field> doc);
 
+    /**
+     * Upserts many documents, each replacing the documents with its term.
+     */
+    void upsert(Map<Term, Iterable<Field>> docs);
+
     public void delete(Term... idTerm);
 
-    void delete(Query q);
+    void delete(Query... queries);
 
     public Analyzer getAnalyzer();
 
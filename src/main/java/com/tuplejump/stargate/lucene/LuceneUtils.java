@@ -44,6 +44,13 @@ public class LuceneUtils {
     public static final String PK_INDEXED = "_pk_idx";
     public static final String PK_BYTES = "_pk_bytes";
     public static final String CF_TS_INDEXED = "_cf_ts";
+    public static final String CF_EXPIRY = "_cf_exp";
+    public static final String TOKEN = "_token";
+    /**
+     * Cassandra order of the rows of Murmur3 tables, except within a partition where primary keys are in byte order.
+     */
+    public static final Sort INDEX_SORT = new Sort(new SortField(TOKEN, SortField.Type.LONG),
+            new SortField(RK_BYTES, SortField.Type.STRING), new SortField(PK_BYTES, SortField.Type.STRING));
     private static final Logger logger = LoggerFactory.getLogger(LuceneUtils.class);
     //  NumberFormat instances are not thread safe
     public static final ThreadLocal<NumberFormat> numberFormatThreadLocal =
@@ -136,11 +143,11 @@ public class LuceneUtils {
         Files.delete(file.toPath());
     }
 
-    public static Number numericDocValue(NumericDocValues rowKeyValues, int docId, Type type) throws IOException {
+    public static Number numericDocValue(NumericDocValues rowKeyValues, int docId, Type type) {
         Long ref = rowKeyValues == null ? 0L : rowKeyValues.get(docId);
         if (type == Type.integer) {
             return ref.intValue();
-        } else if (type == Type.bigint) {
+        } else if (type == Type.bigint || type == Type.date) {
             return ref;
         } else if (type == Type.decimal) {
             return Float.intBitsToFloat(ref.intValue());
@@ -162,18 +169,40 @@ public class LuceneUtils {
         return atomicReader.getSortedDocValues(LuceneUtils.RK_BYTES);
     }
 
+    /**
+     * @return the partition tokens of the segment, or null if some of its docs were indexed without one.
+     */
+    public static NumericDocValues getTokenDocValues(LeafReader atomicReader) throws IOException {
+        return hasTokens(atomicReader) ? atomicReader.getNumericDocValues(TOKEN) : null;
+    }
+
+    /**
+     * Docs indexed before tokens were added have none, so a token range would not match them.
+     */
+    public static boolean hasTokens(IndexReader reader) throws IOException {
+        for (LeafReaderContext context : reader.leaves()) {
+            if (!hasTokens(context.reader())) return false;
+        }
+        return true;
+    }
+
+    private static boolean hasTokens(LeafReader atomicReader) throws IOException {
+        Terms terms = atomicReader.terms(TOKEN);
+        return atomicReader.maxDoc() == 0 || (terms != null && terms.getDocCount() == atomicReader.maxDoc());
+    }
+
 
-    public static ByteBuffer byteBufferDocValue(BinaryDocValues docValues, int docId) throws IOException {
+    public static ByteBuffer byteBufferDocValue(BinaryDocValues docValues, int docId) {
         BytesRef ref = BytesRef.deepCopyOf(docValues.get(docId));
         return ByteBuffer.wrap(ref.bytes, ref.offset, ref.length);
     }
 
-    public static String stringDocValue(BinaryDocValues rowKeyValues, int docId) throws IOException {
+    public static String stringDocValue(BinaryDocValues rowKeyValues, int docId) {
         BytesRef ref = rowKeyValues.get(docId);
         return ref.utf8ToString();
     }
 
-    public static String primaryKeyName(BinaryDocValues primaryKeyNames, int docId) throws IOException {
+    public static String primaryKeyName(BinaryDocValues primaryKeyNames, int docId) {
         BytesRef ref = primaryKeyNames.get(docId);
         return new String(ref.bytes, ref.offset, ref.length, StandardCharsets.UTF_8);
     }
@@ -218,6 +247,29 @@ public class LuceneUtils {
         return new LongField(CF_TS_INDEXED, timestamp, fieldType);
     }
 
+    public static Field tsDocValue(long timestamp) {
+        return new NumericDocValuesField(CF_TS_INDEXED, timestamp);
+    }
+
+    /**
+     * @param localExpirationTime the earliest time in seconds a cell of the row expires at.
+     */
+    public static Field expiryDocValue(int localExpirationTime) {
+        return new NumericDocValuesField(CF_EXPIRY, localExpirationTime);
+    }
+
+    public static Field tokenField(long token) {
+        return new LongField(TOKEN, token, Field.Store.NO);
+    }
+
+    public static Field tokenDocValue(long token) {
+        return new NumericDocValuesField(TOKEN, token);
+    }
+
+    public static Query tokenRangeQuery(long lower, long upper) {
+        return NumericRangeQuery.newLongRange(TOKEN, lower, upper, true, true);
+    }
+
 
     public static Term primaryKeyTerm(String pkString) {
         return new Term(PK_INDEXED, pkString);
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User: satya
+ * Searches the segments of an index in slices of at least sg.search.slice.docs docs, on a search thread pool
+ * shared by all indexes. The searching thread takes the first slice itself. Each slice gets its own collector,
+ * sized by the docs in the slice, and the caller merges them. If a slice fails, the slices not yet started are cancelled.
+ */
+public class ParallelSearcher {
+    public static final int THREADS = Integer.getInteger("sg.search.threads", Runtime.getRuntime().availableProcessors());
+    public static final int MIN_SLICE_DOCS = Integer.getInteger("sg.search.slice.docs", 250000);
+    private static volatile int minSliceDocs = MIN_SLICE_DOCS;
+    private static final AtomicLong slicedSearches = new AtomicLong();
+    public static final ExecutorService executorService = Executors.newFixedThreadPool(THREADS,
+            new ThreadFactoryBuilder().setNameFormat("SGSearch-Thread-%d").setDaemon(true).build());
+
+    public interface CollectorFactory<C extends Collector> {
+        /**
+         * @param maxDocs the number of docs in the slice the collector collects.
+         */
+        C newCollector(int maxDocs) throws IOException;
+    }
+
+    /**
+     * @return the collectors of the slices in doc order.
+     */
+    public static <C extends Collector> List<C> search(IndexSearcher searcher, Query query, CollectorFactory<C> collectorFactory) throws IOException {
+        List<List<LeafReaderContext>> slices = slices(searcher.getIndexReader().leaves());
+        if (slices.size() <= 1) {
+            C collector = collectorFactory.newCollector(Math.max(searcher.getIndexReader().maxDoc(), 1));
+            searcher.search(query, collector);
+            return Collections.singletonList(collector);
+        }
+        List<C> collectors = new ArrayList<>(slices.size());
+        for (List<LeafReaderContext> slice : slices) {
+            collectors.add(collectorFactory.newCollector(maxDoc(slice)));
+        }
+        Weight weight = searcher.createNormalizedWeight(query, collectors.get(0).needsScores());
+        slicedSearches.incrementAndGet();
+        List<Future<?>> futures = new ArrayList<>(slices.size() - 1);
+        boolean done = false;
+        try {
+            for (int i = 1; i < slices.size(); i++) {
+                futures.add(executorService.submit(searchTask(weight, slices.get(i), collectors.get(i))));
+            }
+            search(weight, slices.get(0), collectors.get(0));
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    throw new ThreadInterruptedException(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                //interrupting a running slice could close the index files under the reader
+                for (Future<?> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+        return collectors;
+    }
+
+    /**
+     * Sets the docs per slice of the searches that follow, which is sg.search.slice.docs at startup.
+     */
+    public static void setMinSliceDocs(int docs) {
+        minSliceDocs = docs;
+    }
+
+    /**
+     * @return the number of searches which were split into more than one slice.
+     */
+    public static long slicedSearches() {
+        return slicedSearches.get();
+    }
+
+    /**
+     * Counts the hits from index statistics alone, which is possible for all docs, or a term when there are no deletions.
+     *
+     * @return the number of hits, or -1 if the hits must be collected to count them.
+     */
+    public static int countFromStats(IndexSearcher searcher, Query query) throws IOException {
+        while (query instanceof ConstantScoreQuery) {
+            query = ((ConstantScoreQuery) query).getQuery();
+        }
+        if (query instanceof MatchAllDocsQuery || (query instanceof TermQuery && !searcher.getIndexReader().hasDeletions())) {
+            return searcher.count(query);
+        }
+        return -1;
+    }
+
+    static List<List<LeafReaderContext>> slices(List<LeafReaderContext> leaves) {
+        List<List<LeafReaderContext>> slices = new ArrayList<>();
+        List<LeafReaderContext> slice = new ArrayList<>();
+        int sliceDocs = 0;
+        int minSliceDocs = ParallelSearcher.minSliceDocs;
+        for (LeafReaderContext leaf : leaves) {
+            slice.add(leaf);
+            sliceDocs += leaf.reader().maxDoc();
+            if (sliceDocs >= minSliceDocs) {
+                slices.add(slice);
+                slice = new ArrayList<>();
+                sliceDocs = 0;
+            }
+        }
+        if (!slice.isEmpty()) {
+            if (slices.isEmpty()) slices.add(slice);
+            else slices.get(slices.size() - 1).addAll(slice);
+        }
+        return slices;
+    }
+
+    static int maxDoc(List<LeafReaderContext> slice) {
+        int maxDoc = 0;
+        for (LeafReaderContext leaf : slice) {
+            maxDoc += leaf.reader().maxDoc();
+        }
+        return Math.max(maxDoc, 1);
+    }
+
+    static Callable<Void> searchTask(final Weight weight, final List<LeafReaderContext> slice, final Collector collector) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                search(weight, slice, collector);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Same as the per segment loop of lucene's IndexSearcher.
+     */
+    static void search(Weight weight, List<LeafReaderContext> slice, Collector collector) throws IOException {
+        for (LeafReaderContext leaf : slice) {
+            final LeafCollector leafCollector;
+            try {
+                leafCollector = collector.getLeafCollector(leaf);
+            } catch (CollectionTerminatedException e) {
+                continue;
+            }
+            BulkScorer scorer = weight.bulkScorer(leaf);
+            if (scorer != null) {
+                try {
+                    scorer.score(leafCollector, leaf.reader().getLiveDocs());
+                } catch (CollectionTerminatedException e) {
+                    // collection of this segment was terminated early
+                }
+            }
+        }
+    }
+}
@@ -18,8 +18,10 @@ package com.tuplejump.stargate.lucene;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
 import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.queryparser.flexible.standard.config.NumericConfig;
 import org.apache.lucene.util.NumericUtils;
 import org.apache.lucene.util.Version;
@@ -56,12 +58,92 @@ public class Properties {
         also, only, none
     }
 
+    public enum DirectoryType {
+        fs, mmap, nio, simple
+    }
+
+    public enum ContainerType {
+        monolith, sharded, vnode
+    }
+
     @JsonProperty
     boolean nearRealTime = false;
 
     @JsonProperty
     boolean metaColumn = true;
 
+    @JsonProperty
+    ContainerType container = ContainerType.monolith;
+
+    @JsonProperty
+    int shards = 0;
+
+    @JsonProperty
+    DirectoryType directory = DirectoryType.fs;
+
+    @JsonProperty
+    double nrtCachingMaxCachedMB = 0;
+
+    @JsonProperty
+    double nrtCachingMaxMergeSizeMB = 5;
+
+    @JsonProperty
+    double ramBufferSizeMB = 128;
+
+    @JsonProperty
+    int maxBufferedDocs = IndexWriterConfig.DISABLE_AUTO_FLUSH;
+
+    @JsonProperty
+    double maxMergedSegmentMB = 5 * 1024;
+
+    @JsonProperty
+    double segmentsPerTier = 10;
+
+    @JsonProperty
+    double floorSegmentMB = 2;
+
+    @JsonProperty
+    int maxMergeThreads = ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS;
+
+    @JsonProperty
+    int maxMergeCount = ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS;
+
+    @JsonProperty
+    boolean mergeIOThrottling = true;
+
+    @JsonProperty
+    boolean indexSort = false;
+
+    @JsonProperty
+    int reopenMaxStaleMillis = 0;
+
+    @JsonProperty
+    int reopenMinStaleMillis = 25;
+
+    @JsonProperty
+    double resultCacheMaxMB = 0;
+
+    @JsonProperty
+    int queryCacheMaxEntries = 0;
+
+    @JsonProperty
+    double queryCacheMaxRamMB = 0;
+
+    @JsonProperty
+    int queryCacheMinUses = 0;
+
+    @JsonProperty
+    boolean coveringReads = false;
+
+    @JsonProperty
+    long commitIntervalMillis = 0;
+
+    @JsonProperty
+    long commitMaxDocs = 0;
+
+    @JsonProperty
+    double commitMaxRamMB = 0;
+
     @JsonProperty
     private
     Type type;
@@ -213,6 +295,118 @@ public class Properties {
         return metaColumn;
     }
 
+    public ContainerType getContainer() {
+        return container;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public DirectoryType getDirectory() {
+        return directory;
+    }
+
+    public double getNrtCachingMaxCachedMB() {
+        return nrtCachingMaxCachedMB;
+    }
+
+    public double getNrtCachingMaxMergeSizeMB() {
+        return nrtCachingMaxMergeSizeMB;
+    }
+
+    public double getRamBufferSizeMB() {
+        return ramBufferSizeMB;
+    }
+
+    public int getMaxBufferedDocs() {
+        return maxBufferedDocs;
+    }
+
+    public double getMaxMergedSegmentMB() {
+        return maxMergedSegmentMB;
+    }
+
+    public double getSegmentsPerTier() {
+        return segmentsPerTier;
+    }
+
+    public double getFloorSegmentMB() {
+        return floorSegmentMB;
+    }
+
+    public int getMaxMergeThreads() {
+        return maxMergeThreads;
+    }
+
+    public int getMaxMergeCount() {
+        return maxMergeCount;
+    }
+
+    /**
+     * Rejects merge settings that lucene would only reject once the index writer is opened.
+     */
+    public void validate() {
+        int auto = ConcurrentMergeScheduler.AUTO_DETECT_MERGES_AND_THREADS;
+        if (maxMergeThreads != auto && maxMergeThreads < 1) {
+            throw new IllegalArgumentException("maxMergeThreads must be at least 1, or -1 to auto detect, but was " + maxMergeThreads);
+        }
+        if (maxMergeCount != auto && maxMergeCount < 1) {
+            throw new IllegalArgumentException("maxMergeCount must be at least 1, or -1 to auto detect, but was " + maxMergeCount);
+        }
+        if (maxMergeThreads != auto && maxMergeCount != auto && maxMergeCount < maxMergeThreads) {
+            throw new IllegalArgumentException("maxMergeCount [" + maxMergeCount + "] must be at least maxMergeThreads [" + maxMergeThreads + "]");
+        }
+    }
+
+    public boolean isMergeIOThrottling() {
+        return mergeIOThrottling;
+    }
+
+    public boolean isIndexSort() {
+        return indexSort;
+    }
+
+    public int getReopenMaxStaleMillis() {
+        return reopenMaxStaleMillis;
+    }
+
+    public int getReopenMinStaleMillis() {
+        return reopenMinStaleMillis;
+    }
+
+    public double getResultCacheMaxMB() {
+        return resultCacheMaxMB;
+    }
+
+    public int getQueryCacheMaxEntries() {
+        return queryCacheMaxEntries;
+    }
+
+    public double getQueryCacheMaxRamMB() {
+        return queryCacheMaxRamMB;
+    }
+
+    public int getQueryCacheMinUses() {
+        return queryCacheMinUses;
+    }
+
+    public boolean isCoveringReads() {
+        return coveringReads;
+    }
+
+    public long getCommitIntervalMillis() {
+        return commitIntervalMillis;
+    }
+
+    public long getCommitMaxDocs() {
+        return commitMaxDocs;
+    }
+
+    public double getCommitMaxRamMB() {
+        return commitMaxRamMB;
+    }
+
     public int getMaxFieldLength() {
         return maxFieldLength;
     }
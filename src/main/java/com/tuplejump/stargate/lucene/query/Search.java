@@ -21,11 +21,14 @@ import com.tuplejump.stargate.lucene.Options;
 import com.tuplejump.stargate.lucene.query.function.Function;
 import com.tuplejump.stargate.lucene.query.function.NoOp;
 import org.apache.lucene.search.*;
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.annotate.JsonCreator;
 import org.codehaus.jackson.annotate.JsonProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Class representing an Lucene's index search. It is formed by an optional querying {@link Condition} and an optional
  * filtering {@link Condition}. It can be translated to a Lucene's {@link Query} using a {@link com.tuplejump.stargate.lucene.Options}.
@@ -53,6 +56,11 @@ public class Search {
 
     private final boolean showScore;
 
+    /**
+     * The query and sort last built from this search, shared by the searches created with {@link #withFunction}.
+     */
+    private final AtomicReference<Compiled> compiled;
+
     /**
      * Returns a new {@link Search} composed by the specified querying and filtering conditions.
      *
@@ -72,6 +80,23 @@ public class Search {
         if (function == null) this.function = new NoOp();
         else this.function = function;
         this.showScore = showScore;
+        this.compiled = new AtomicReference<>();
+    }
+
+    private Search(Search search, Function function) {
+        this.queryCondition = search.queryCondition;
+        this.filterCondition = search.filterCondition;
+        this.sort = search.sort;
+        this.function = function;
+        this.showScore = search.showScore;
+        this.compiled = search.compiled;
+    }
+
+    /**
+     * Returns a search with the conditions of this one and the given function. The built query and sort are shared.
+     */
+    public Search withFunction(Function function) {
+        return new Search(this, function);
     }
 
     /**
@@ -106,6 +131,32 @@ public class Search {
      * @throws Exception when the query cannot be constructed
      */
     public Query query(Options schema) throws Exception {
+        return compiled(schema).query;
+    }
+
+    public org.apache.lucene.search.SortField[] sort(Options schema) {
+        try {
+            return compiled(schema).sort;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Queries and sorts are immutable once built, so they are built once per options.
+     */
+    private Compiled compiled(Options schema) throws Exception {
+        Compiled current = compiled.get();
+        if (current == null || current.options != schema) {
+            current = new Compiled(schema, buildQuery(schema), sort == null ? null : sort.sort(schema));
+            compiled.set(current);
+        }
+        return current;
+    }
+
+    private Query buildQuery(Options schema) throws Exception {
         Query query = queryCondition == null ? null : queryCondition.query(schema);
         Query filter = filterCondition == null ? null : filterCondition.filter(schema);
         if (query == null && filter == null) {
@@ -127,9 +178,6 @@ public class Search {
         }
     }
 
-    public org.apache.lucene.search.SortField[] sort(Options schema) {
-        return sort == null ? null : sort.sort(schema);
-    }
 
     /**
      * Returns a new {@link Search} from the specified JSON {@code String}.
@@ -147,6 +195,44 @@ public class Search {
         }
     }
 
+    /**
+     * Returns a new {@link Search} from the specified JSON tree.
+     */
+    public static Search fromJson(JsonNode json) {
+        try {
+            return Options.inputMapper.readValue(json, Search.class);
+        } catch (Exception e) {
+            String message = "Cannot parse JSON index expression: " + json;
+            logger.error(message, e);
+            throw new IllegalArgumentException(message, e);
+        }
+    }
+
+    /**
+     * Returns a new {@link Function} from the specified JSON tree of the {@code function} property of a search.
+     */
+    public static Function functionFromJson(JsonNode json) {
+        try {
+            return Options.inputMapper.readValue(json, Function.class);
+        } catch (Exception e) {
+            String message = "Cannot parse JSON function: " + json;
+            logger.error(message, e);
+            throw new IllegalArgumentException(message, e);
+        }
+    }
+
+    private static final class Compiled {
+        final Options options;
+        final Query query;
+        final org.apache.lucene.search.SortField[] sort;
+
+        Compiled(Options options, Query query, org.apache.lucene.search.SortField[] sort) {
+            this.options = options;
+            this.query = query;
+            this.sort = sort;
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -27,6 +27,11 @@ public interface Aggregate {
 
     public void aggregate(Tuple tuple);
 
+    /**
+     * Adds the values aggregated by another aggregate of the same factory, such as one of another slice of the index.
+     */
+    public void merge(Aggregate other);
+
     public void writeJson(JsonGenerator generator) throws IOException;
 
 }
@@ -25,6 +25,8 @@ import com.tuplejump.stargate.lucene.*;
 import com.tuplejump.stargate.lucene.Properties;
 import org.apache.cassandra.db.ColumnFamilyStore;
 import org.apache.cassandra.db.Row;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
 import org.codehaus.jackson.annotate.JsonProperty;
 import org.mvel2.MVEL;
 import org.mvel2.ParserConfiguration;
@@ -72,6 +74,11 @@ public class AggregateFunction implements Function {
         return false;
     }
 
+    @Override
+    public boolean needsAllResults() {
+        return true;
+    }
+
     public Map<String, Integer> getPositions() {
         return positions;
     }
@@ -83,16 +90,25 @@ public class AggregateFunction implements Function {
     @Override
     public List<Row> process(ResultMapper resultMapper, ColumnFamilyStore table, RowIndex currentIndex) throws Exception {
         Options options = resultMapper.searchSupport.getOptions();
-        if (aggregates.length == 1 && !aggregates[0].distinct && "count".equalsIgnoreCase(aggregates[0].getType()) && groupBy == null) {
+        if (isCountStar()) {
             //this means it is a count-star. we can simply return the size of the index results
             Count count = new Count(aggregates[0], false);
-            count.count = resultMapper.collector.docs().size();
+            count.count = resultMapper.collector.hitCount();
             group.groups.put(new Tuple(options.nestedFields, Collections.EMPTY_MAP, simpleExpressions), count);
             Row row = resultMapper.tableMapper.getRowWithMetaColumn(group.toByteBuffer());
             return Collections.singletonList(row);
         }
         Tuple tuple = createTuple(options);
-        if (resultMapper.collector.canByPassRowFetch()) {
+        if (resultMapper.collector.isGroupCounting()) {
+            //one hit per group values was kept, with the number of hits having those values
+            for (IndexEntryCollector.GroupCount groupCount : resultMapper.collector.groupCounts()) {
+                load(tuple, groupCount.entry);
+                group.addCount(tuple, groupCount.count);
+            }
+        } else if (resultMapper.collector.isAggregating()) {
+            //the hits were aggregated as they were collected
+            group.merge(resultMapper.collector.aggregatedGroup());
+        } else if (resultMapper.collector.canByPassRowFetch()) {
             for (IndexEntryCollector.IndexEntry indexEntry : resultMapper.collector.docs()) {
                 load(tuple, indexEntry);
                 group.addTuple(tuple);
@@ -113,6 +129,24 @@ public class AggregateFunction implements Function {
         return Collections.singletonList(row);
     }
 
+    public boolean isCountStar() {
+        return groupBy == null && aggregates.length == 1 && isPlainCount(aggregates[0]);
+    }
+
+    /**
+     * @return true if all aggregates are counts of hits, which only need the number of hits in each group.
+     */
+    public boolean isCountOnly() {
+        for (AggregateFactory aggregate : aggregates) {
+            if (!isPlainCount(aggregate)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isPlainCount(AggregateFactory aggregate) {
+        return !aggregate.distinct && "count".equalsIgnoreCase(aggregate.getType());
+    }
+
     public Tuple createTuple(Options options) {
         return new Tuple(options.nestedFields, positions, simpleExpressions);
     }
@@ -164,10 +198,17 @@ public class AggregateFunction implements Function {
             }
 
         }
-        group = new Group(options, aggregates, groupBy, groupByExpressions);
+        group = newGroup();
 
     }
 
+    /**
+     * @return an empty group of the aggregates, for hits aggregated apart from this function's own group.
+     */
+    public Group newGroup() {
+        return new Group(options, aggregates, groupBy, groupByExpressions);
+    }
+
     private ParserConfiguration getParserConfiguration() {
         ParserConfiguration parserConfig = new ParserConfiguration();
         parserConfig.addPackageImport("java.util");
@@ -225,23 +266,48 @@ public class AggregateFunction implements Function {
 
     public void load(Tuple tuple, IndexEntryCollector.IndexEntry entry) {
         for (String field : positions.keySet()) {
-            Type validator = options.types.get(field);
-            load(tuple, entry, field, validator);
-            if (validator == null) {
-                Iterator<String> fieldNameParts = Constants.dotSplitter.split(field).iterator();
-                String columnName = fieldNameParts.next();
-                if (options.nestedFields.contains(columnName)) {
-                    Properties columnProps = options.fields.get(columnName);
-                    Properties fieldProps;
-                    if (columnProps.getType() == Type.map) {
-                        fieldProps = columnProps.getFields().get("_value");
-                    } else {
-                        fieldProps = columnProps.getFields().get(fieldNameParts.next());
-                    }
-                    load(tuple, entry, field, fieldProps.getType());
+            load(tuple, entry, field, tupleType(field));
+        }
+    }
+
+    /**
+     * @return a loader of the tuples of the hits of a segment, from the doc values of the segment.
+     */
+    public LeafLoader leafLoader(Map<String, NumericDocValues> numericDocValues, Map<String, SortedDocValues> stringDocValues) {
+        LeafLoader loader = new LeafLoader(positions.size());
+        int i = 0;
+        for (Map.Entry<String, Integer> position : positions.entrySet()) {
+            String field = position.getKey();
+            loader.positions[i] = position.getValue();
+            loader.types[i] = tupleType(field);
+            loader.luceneTypes[i] = getLuceneType(options, field);
+            loader.numerics[i] = numericDocValues.get(field);
+            loader.strings[i] = stringDocValues.get(field);
+            i++;
+        }
+        return loader;
+    }
+
+    /**
+     * @return the type of the column of a field, or of the nested field for a field of an object or map.
+     */
+    private Type tupleType(String field) {
+        Type validator = options.types.get(field);
+        if (validator == null) {
+            Iterator<String> fieldNameParts = Constants.dotSplitter.split(field).iterator();
+            String columnName = fieldNameParts.next();
+            if (options.nestedFields.contains(columnName)) {
+                Properties columnProps = options.fields.get(columnName);
+                Properties fieldProps;
+                if (columnProps.getType() == Type.map) {
+                    fieldProps = columnProps.getFields().get("_value");
+                } else {
+                    fieldProps = columnProps.getFields().get(fieldNameParts.next());
                 }
+                return fieldProps.getType();
             }
         }
+        return validator;
     }
 
     private void load(Tuple tuple, IndexEntryCollector.IndexEntry entry, String field, Type validator) {
@@ -261,4 +327,37 @@ public class AggregateFunction implements Function {
     public Group getGroup() {
         return group;
     }
+
+    /**
+     * Loads tuples with the doc values of a segment, so aggregated hits need no entry each.
+     */
+    public static final class LeafLoader {
+        final int[] positions;
+        final Type[] types;
+        final Type[] luceneTypes;
+        final NumericDocValues[] numerics;
+        final SortedDocValues[] strings;
+
+        LeafLoader(int size) {
+            positions = new int[size];
+            types = new Type[size];
+            luceneTypes = new Type[size];
+            numerics = new NumericDocValues[size];
+            strings = new SortedDocValues[size];
+        }
+
+        public void load(Tuple tuple, int doc) {
+            for (int i = 0; i < positions.length; i++) {
+                Type validator = types[i];
+                if (validator == null) continue;
+                if (validator.isNumeric()) {
+                    tuple.tuple[positions[i]] = LuceneUtils.numericDocValue(numerics[i], doc, luceneTypes[i]);
+                } else if (validator == Type.date) {
+                    tuple.tuple[positions[i]] = new Date(LuceneUtils.numericDocValue(numerics[i], doc, luceneTypes[i]).longValue());
+                } else {
+                    tuple.tuple[positions[i]] = LuceneUtils.stringDocValue(strings[i], doc);
+                }
+            }
+        }
+    }
 }
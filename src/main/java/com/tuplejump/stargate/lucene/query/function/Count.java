@@ -44,6 +44,13 @@ public class Count implements Aggregate {
         else values.aggregate(tuple);
     }
 
+    @Override
+    public void merge(Aggregate other) {
+        Count count = (Count) other;
+        if (!distinct) this.count += count.count;
+        else values.merge(count.values);
+    }
+
     @Override
     public void writeJson(JsonGenerator generator) throws IOException {
         generator.writeStartObject();
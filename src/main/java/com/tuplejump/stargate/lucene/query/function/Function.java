@@ -42,5 +42,11 @@ public interface Function {
 
     boolean shouldTryScoring();
 
+    /**
+     * @return true if this function has to see every hit of the query, false if the hits needed to satisfy the
+     * query limit are enough.
+     */
+    boolean needsAllResults();
+
     List<Row> process(ResultMapper resultMapper, ColumnFamilyStore table, RowIndex currentIndex) throws Exception;
 }
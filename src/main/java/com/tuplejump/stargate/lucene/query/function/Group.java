@@ -30,6 +30,7 @@ import org.mvel2.compiler.ExecutableStatement;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.Iterator;
 
 /**
  * User: satya
@@ -74,6 +75,40 @@ public class Group {
         }
     }
 
+    /**
+     * Adds count hits with the group values of the tuple at once. The aggregates must all be counts.
+     */
+    public void addCount(Tuple tuple, long count) {
+        Tuple key = tuple.project(groupByFields, groupByExpressions);
+        Collection<Aggregate> groupValue = groups.get(key);
+        if (groupValue.isEmpty()) {
+            for (AggregateFactory aggregateFactory : aggregatesToCalculate) {
+                groups.put(key, new Count(aggregateFactory, false));
+            }
+        }
+        for (Aggregate aggregate : groupValue) {
+            ((Count) aggregate).count += count;
+        }
+    }
+
+    /**
+     * Adds the groups of another group of the same function, merging the aggregates of groups both have.
+     */
+    public void merge(Group other) {
+        for (Tuple key : other.groups.keySet()) {
+            Collection<Aggregate> groupValue = groups.get(key);
+            Collection<Aggregate> otherValue = other.groups.get(key);
+            if (groupValue.isEmpty()) {
+                groupValue.addAll(otherValue);
+            } else {
+                Iterator<Aggregate> otherAggregates = otherValue.iterator();
+                for (Aggregate aggregate : groupValue) {
+                    aggregate.merge(otherAggregates.next());
+                }
+            }
+        }
+    }
+
     public ByteBuffer toByteBuffer() throws IOException {
         BufferRecycler bufferRecycler = bufferThreadLocal.get();
         ByteArrayBuilder bytes = new ByteArrayBuilder(bufferRecycler);
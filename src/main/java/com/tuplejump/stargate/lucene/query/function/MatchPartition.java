@@ -86,6 +86,11 @@ public class MatchPartition implements Function {
         return false;
     }
 
+    @Override
+    public boolean needsAllResults() {
+        return true;
+    }
+
     @Override
     public List<Row> process(final ResultMapper resultMapper, final ColumnFamilyStore table, RowIndex currentIndex) throws Exception {
         Set<String> automatonFields = new HashSet<>();
@@ -131,7 +136,7 @@ public class MatchPartition implements Function {
             final Map<CellName, ColumnFamily> fullSlice = resultMapper.fetchRangeSlice(entries, dk);
             List<Tuple> tuples = new ArrayList<>(fullSlice.size());
             for (IndexEntryCollector.IndexEntry entry : entries) {
-                CellName cellName = entry.clusteringKey;
+                CellName cellName = entry.clusteringKey();
                 ColumnFamily cf = fullSlice.get(cellName);
                 if (cf != null) {
                     Tuple tuple = aggregateFunction.createTuple(options);
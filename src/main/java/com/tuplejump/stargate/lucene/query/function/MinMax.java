@@ -45,9 +45,18 @@ public class MinMax implements Aggregate {
 
     @Override
     public void aggregate(Tuple tuple) {
+        add(tuple.getValue(field));
+    }
+
+    @Override
+    public void merge(Aggregate other) {
+        Object otherValue = ((MinMax) other).currentValue;
+        if (otherValue != null) add(otherValue);
+    }
 
+    private void add(Object value) {
         if (isNumber) {
-            Number colValue = (Number) tuple.getValue(field);
+            Number colValue = (Number) value;
             if (currentValue == null) currentValue = colValue;
             if (reverse) {
                 currentValue = AggregateFunction.NumberComparator.compareNumbers((Number) currentValue, colValue) > 0 ? currentValue : colValue;
@@ -55,7 +64,7 @@ public class MinMax implements Aggregate {
                 currentValue = AggregateFunction.NumberComparator.compareNumbers((Number) currentValue, colValue) < 0 ? currentValue : colValue;
 
         } else {
-            String colValue = tuple.getValue(field).toString();
+            String colValue = value.toString();
             if (currentValue == null) currentValue = colValue;
             if (reverse) {
                 currentValue = colValue.compareTo(currentValue.toString()) < 0 ? currentValue : colValue;
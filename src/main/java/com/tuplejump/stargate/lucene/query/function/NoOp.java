@@ -40,6 +40,11 @@ public class NoOp implements Function {
         return true;
     }
 
+    @Override
+    public boolean needsAllResults() {
+        return false;
+    }
+
     @Override
     public List<Row> process(ResultMapper resultMapper, ColumnFamilyStore table, RowIndex currentIndex) throws Exception {
         RowFetcher rowFetcher = new RowFetcher(resultMapper);
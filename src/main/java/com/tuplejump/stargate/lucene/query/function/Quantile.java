@@ -54,6 +54,11 @@ public class Quantile implements Aggregate {
         add((Number) tuple.getValue(field));
     }
 
+    @Override
+    public void merge(Aggregate other) {
+        accumulator.add(((Quantile) other).accumulator);
+    }
+
     private void add(Number obj) {
         if (cqlType == Type.integer) {
             accumulator.add((Integer) obj);
@@ -59,6 +59,13 @@ public class Sum implements Aggregate {
         else add((Number) tuple.getValue(field));
     }
 
+    @Override
+    public void merge(Aggregate other) {
+        Sum sum = (Sum) other;
+        if (distinct) values.merge(sum.values);
+        else this.sum += sum.sum;
+    }
+
     private void add(Number obj) {
         if (cqlType == Type.integer) {
             sum += obj.intValue();
@@ -44,6 +44,11 @@ public class Values implements Aggregate {
         values.add(tuple.getValue(field));
     }
 
+    @Override
+    public void merge(Aggregate other) {
+        values.addAll(((Values) other).values);
+    }
+
     @Override
     public void writeJson(JsonGenerator generator) throws IOException {
         generator.writeStartObject();
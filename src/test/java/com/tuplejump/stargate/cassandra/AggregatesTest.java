@@ -18,12 +18,17 @@ package com.tuplejump.stargate.cassandra;
 
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
+import com.tuplejump.stargate.StargateMBean;
 import com.tuplejump.stargate.util.CQLUnitD;
 import junit.framework.Assert;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
 
 /**
  * User: satya
@@ -60,16 +65,103 @@ public class AggregatesTest extends IndexTestBase {
             countResults("TAG2", "magic = '" + funWithFilter(fun(null, "count-star", "count", false), "tags", "tags:hello*") + "'", true);
             countResults("TAG2", "magic = '" + funWithFilter(gFun("value", "sum-value", "sum", false, "key"), "tags", "tags:hello*") + "'", true);
 
+            //repeated function searches are parsed once and get a fresh function
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            String sumByState = "magic = '" + funWithFilter(gFun("value", "sum-value", "sum", false, "state"), "tags", "tags:hello* AND state:CA") + "'";
+            Long searchMisses = (Long) mBeanServer.invoke(new ObjectName(StargateMBean.MBEAN_NAME), "indexSearchCacheMisses", new Object[]{"tagsandstate"}, new String[]{String.class.getName()});
+            String sum = getResults("TAG2", sumByState, true).one().getString("magic");
+            Long searchHits = (Long) mBeanServer.invoke(new ObjectName(StargateMBean.MBEAN_NAME), "indexSearchCacheHits", new Object[]{"tagsandstate"}, new String[]{String.class.getName()});
+            Assert.assertEquals(searchMisses + 1, mBeanServer.invoke(new ObjectName(StargateMBean.MBEAN_NAME), "indexSearchCacheMisses", new Object[]{"tagsandstate"}, new String[]{String.class.getName()}));
+            Assert.assertEquals(sum, getResults("TAG2", sumByState, true).one().getString("magic"));
+            Assert.assertTrue((Long) mBeanServer.invoke(new ObjectName(StargateMBean.MBEAN_NAME), "indexSearchCacheHits", new Object[]{"tagsandstate"}, new String[]{String.class.getName()}) > searchHits);
+            Assert.assertEquals(searchMisses + 1, mBeanServer.invoke(new ObjectName(StargateMBean.MBEAN_NAME), "indexSearchCacheMisses", new Object[]{"tagsandstate"}, new String[]{String.class.getName()}));
+
+            //repeated aggregates are served from the result cache till the index changes
+            String countStar = "magic = '" + funWithFilter(fun(null, "count-star", "count", false), "tags", "tags:hello*") + "'";
+            String count = getResults("TAG2", countStar, true).one().getString("magic");
+            Assert.assertEquals(count, getResults("TAG2", countStar, true).one().getString("magic"));
+            Long hits = (Long) mBeanServer.invoke(new ObjectName(StargateMBean.MBEAN_NAME), "indexResultCacheHits", new Object[]{"tagsandstate"}, new String[]{String.class.getName()});
+            Assert.assertTrue(hits > 0);
+            getSession().execute("insert into " + keyspace + ".TAG2 (key,tags,state,segment,value) values (100,'hello1 tag1 lol1', 'CA',1,1)");
+            Assert.assertFalse(count.equals(getResults("TAG2", countStar, true).one().getString("magic")));
+        } finally {
+            dropTable(keyspace, "TAG2");
+            dropKS(keyspace);
+        }
+    }
+
+    @Test
+    public void shouldCountGroupsOnDocValues() throws Exception {
+        try {
+            createKS(keyspace);
+            createTableAndIndexForRowStriped();
+            //grouped counts on doc values are counted per group without collecting the hits
+            String caCount = getResults("TAG2", "magic = '" + funWithFilter(fun(null, "ca-count", "count", false), "tags", "tags:hello* AND state:CA") + "'", true).one().getString("magic");
+            String caGroupCount = getResults("TAG2", "magic = '" + funWithFilter(gFun(null, "ca-count", "count", false, "state"), "tags", "tags:hello* AND state:CA") + "'", true).one().getString("magic");
+            Assert.assertEquals(countOf(caCount, "ca-count"), countOf(caGroupCount, "ca-count"));
+            Assert.assertTrue(countOf(caGroupCount, "ca-count") > 0);
         } finally {
             dropTable(keyspace, "TAG2");
             dropKS(keyspace);
         }
     }
 
+    @Test
+    public void shouldNotServeCachedResultsOfRefreshedReaders() throws Exception {
+        try {
+            createKS(keyspace);
+            String options = "{\"metaColumn\":true,\"resultCacheMaxMB\":16,\"fields\":{\"tags\":{\"type\":\"text\"},\"value\":{}}}";
+            getSession().execute("USE " + keyspace + ";");
+            getSession().execute("CREATE TABLE TAG_RC(key int, tags varchar, value int, magic text, PRIMARY KEY(key))");
+            getSession().execute("CREATE CUSTOM INDEX tagrc ON TAG_RC(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+            for (int key = 1; key <= 10; key++) {
+                getSession().execute("insert into " + keyspace + ".TAG_RC (key,tags,value) values (" + key + ",'hello" + key + "'," + key + ")");
+            }
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            String count = "magic = '" + funWithFilter(fun(null, "count-star", "count", false), "tags", "hello*") + "'";
+            String sum = "magic = '" + funWithFilter(fun("value", "sum-value", "sum", false), "tags", "hello*") + "'";
+            long rows = 10;
+            long total = 55;
+            for (int i = 0; i < 3; i++) {
+                Assert.assertEquals(rows, countOf(getResults("TAG_RC", count, true).one().getString("magic"), "count-star"));
+                Assert.assertEquals(total, countOf(getResults("TAG_RC", sum, true).one().getString("magic"), "sum-value"));
+                long hits = (Long) mBeanServer.invoke(new ObjectName(StargateMBean.MBEAN_NAME), "indexResultCacheHits", new Object[]{"tagrc"}, new String[]{String.class.getName()});
+                Assert.assertEquals(rows, countOf(getResults("TAG_RC", count, true).one().getString("magic"), "count-star"));
+                Assert.assertEquals(total, countOf(getResults("TAG_RC", sum, true).one().getString("magic"), "sum-value"));
+                Assert.assertTrue((Long) mBeanServer.invoke(new ObjectName(StargateMBean.MBEAN_NAME), "indexResultCacheHits", new Object[]{"tagrc"}, new String[]{String.class.getName()}) > hits);
+                //an insert, an update and a delete each refresh the reader, and the cached results of the old one are not used
+                int key = 20 + i;
+                getSession().execute("insert into " + keyspace + ".TAG_RC (key,tags,value) values (" + key + ",'hello" + key + "'," + key + ")");
+                rows++;
+                total += key;
+                Assert.assertEquals(rows, countOf(getResults("TAG_RC", count, true).one().getString("magic"), "count-star"));
+                Assert.assertEquals(total, countOf(getResults("TAG_RC", sum, true).one().getString("magic"), "sum-value"));
+                getSession().execute("update " + keyspace + ".TAG_RC set value = " + (key * 2) + " where key = " + key);
+                total += key;
+                Assert.assertEquals(total, countOf(getResults("TAG_RC", sum, true).one().getString("magic"), "sum-value"));
+                getSession().execute("delete from " + keyspace + ".TAG_RC where key = " + (i + 1));
+                rows--;
+                total -= i + 1;
+                Assert.assertEquals(rows, countOf(getResults("TAG_RC", count, true).one().getString("magic"), "count-star"));
+                Assert.assertEquals(total, countOf(getResults("TAG_RC", sum, true).one().getString("magic"), "sum-value"));
+            }
+        } finally {
+            dropTable(keyspace, "TAG_RC");
+            dropKS(keyspace);
+        }
+    }
+
+    private static long countOf(String aggregates, String alias) throws Exception {
+        JsonNode groups = new ObjectMapper().readTree(aggregates).get("groups");
+        Assert.assertEquals(aggregates, 1, groups.size());
+        return groups.get(0).get("aggregations").get(0).get(alias).getLongValue();
+    }
+
     private void createTableAndIndexForRow() {
         String options = "{\n" +
                 "\t\"numShards\":1024,\n" +
                 "\t\"metaColumn\":true,\n" +
+                "\t\"resultCacheMaxMB\":16,\n" +
                 "\t\"fields\":{\n" +
                 "\t\t\"key\":{},\n" +
                 "\t\t\"tags\":{\"type\":\"text\"},\n" +
@@ -89,6 +89,9 @@ public class BasicIndexTest extends IndexTestBase {
             }
             Assert.assertEquals(40, countResults("TAG2", "magic = '" + q("tags", "h*") + "'", true));
             Assert.assertEquals(12, countResults("TAG2", "magic = '" + q("tags", "hello1") + "'", true));
+            Assert.assertEquals(40, countPagedResults("TAG2", "magic = '" + q("tags", "h*") + "'", 7, true));
+            String sortedInPartition = "segment = 20 AND magic = '" + q("tags", "h*", "state") + "'";
+            Assert.assertEquals(countResults("TAG2", sortedInPartition, true), countPagedResults("TAG2", sortedInPartition, 3, true));
             int i = 0;
             while (i < 20) {
                 i = i + 10;
@@ -96,6 +99,7 @@ public class BasicIndexTest extends IndexTestBase {
             }
             Assert.assertEquals(16, countResults("TAG2", "magic = '" + q("tags", "hello*") + "'", true));
             Assert.assertEquals(5, countResults("TAG2", "magic = '" + q("tags", "hello*","state") + "' limit 5", true));
+            Assert.assertEquals(5, countResults("TAG2", "magic = '" + q("tags", "hello*") + "' limit 5", true));
             Assert.assertEquals(1, countStarResults("TAG2", "magic = '" + q("tags", "hello*") + "'", true));
             Assert.assertEquals(1, countResults("TAG2", "segment=30 and key=36 AND magic = '" + mq("tags", "tag1") + "'", true));
             Assert.assertEquals(0, countResults("TAG2", "segment=20 and key=36 AND magic = '" + mq("tags", "tag1") + "'", true));
@@ -131,6 +135,11 @@ public class BasicIndexTest extends IndexTestBase {
         Long readGen = (Long) mBeanServer.invoke(objectName, "readGeneration", new Object[]{}, new String[]{});
         System.out.println(readGen);
         Assert.assertEquals(true, readGen.equals(writeGen));
+        Long indexWriteGen = (Long) mBeanServer.invoke(objectName, "indexWriteGeneration", new Object[]{"tagsandstate"}, new String[]{String.class.getName()});
+        Long indexReadGen = (Long) mBeanServer.invoke(objectName, "indexReadGeneration", new Object[]{"tagsandstate"}, new String[]{String.class.getName()});
+        Assert.assertEquals(indexWriteGen, indexReadGen);
+        Long catchUpTimeouts = (Long) mBeanServer.invoke(objectName, "catchUpTimeouts", new Object[]{}, new String[]{});
+        Assert.assertEquals(0L, catchUpTimeouts.longValue());
 
     }
 
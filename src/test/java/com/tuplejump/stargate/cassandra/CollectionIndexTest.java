@@ -49,6 +49,20 @@ public class CollectionIndexTest extends IndexTestBase {
             }
             Assert.assertEquals(8, countResults("TAG2", "magic = '" + q("tags2", "hot") + "'", true));
             Assert.assertEquals(14, countResults("TAG2", "magic = '" + q("tags2", "bad") + "'", true));
+            //appending to a collection keeps its other elements indexed
+            getSession().execute("UPDATE " + keyspace + ".TAG2 SET tags = tags + {'added'}, tags2 = tags2 + ['appended'] WHERE key = 21");
+            getSession().execute("UPDATE " + keyspace + ".TAG2 SET phones = phones + {'ann':'555-0001'} WHERE key = 21");
+            Assert.assertEquals(1, countResults("TAG2", "key = 21 AND magic = '" + q("tags", "added") + "'", true));
+            Assert.assertEquals(1, countResults("TAG2", "key = 21 AND magic = '" + q("tags", "hello1") + "'", true));
+            Assert.assertEquals(1, countResults("TAG2", "key = 21 AND magic = '" + q("tags2", "appended") + "'", true));
+            Assert.assertEquals(1, countResults("TAG2", "key = 21 AND magic = '" + q("tags2", "ugly") + "'", true));
+            Assert.assertEquals(1, countResults("TAG2", "key = 21 AND magic = '" + q("phones.ann", "555-0001") + "'", true));
+            Assert.assertEquals(1, countResults("TAG2", "key = 21 AND magic = '" + q("phones.patricia", "555-4326") + "'", true));
+            //overwriting a collection drops its elements
+            getSession().execute("UPDATE " + keyspace + ".TAG2 SET tags = {'replaced'} WHERE key = 21");
+            Assert.assertEquals(1, countResults("TAG2", "key = 21 AND magic = '" + q("tags", "replaced") + "'", true));
+            Assert.assertEquals(0, countResults("TAG2", "key = 21 AND magic = '" + q("tags", "hello1") + "'", true));
+            Assert.assertEquals(1, countResults("TAG2", "key = 21 AND magic = '" + q("tags2", "appended") + "'", true));
         } finally {
             dropTable(keyspace, "TAG2");
             dropKS(keyspace);
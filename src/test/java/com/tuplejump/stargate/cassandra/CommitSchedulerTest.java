@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.StargateMBean;
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * User: satya
+ */
+public class CommitSchedulerTest extends IndexTestBase {
+    String keyspace = "dummyksCommit";
+
+    public CommitSchedulerTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldCommitOnlyAfterWrites() throws Exception {
+        try {
+            createKS(keyspace);
+            createTableAndIndex();
+            //commitMaxDocs is crossed, so the scheduler should commit within a few checks
+            long commits = awaitCommitsAbove(0);
+            Assert.assertTrue(commits > 0);
+            Thread.sleep(1000);
+            //the interval elapses again and again, but with no writes there is nothing to commit
+            commits = commits();
+            Thread.sleep(1500);
+            Assert.assertEquals(commits, commits());
+            getSession().execute("insert into " + keyspace + ".TAG_COMMIT (key,tags,state,segment) values (100,'hello1 tag1 lol1', 'CA',100)");
+            Assert.assertTrue(awaitCommitsAbove(commits) > commits);
+            Assert.assertEquals(13, countResults("TAG_COMMIT", "magic = '" + q("tags", "tags:hello* AND state:CA") + "'", true));
+        } finally {
+            dropTable(keyspace, "TAG_COMMIT");
+            dropKS(keyspace);
+        }
+    }
+
+    private long awaitCommitsAbove(long previous) throws Exception {
+        long commits = previous;
+        for (int i = 0; i < 50 && commits <= previous; i++) {
+            Thread.sleep(200);
+            commits = commits();
+        }
+        return commits;
+    }
+
+    private long commits() throws Exception {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        return (Long) mBeanServer.invoke(new ObjectName(StargateMBean.MBEAN_NAME), "indexCommits", new Object[]{"tagcommit"}, new String[]{String.class.getName()});
+    }
+
+    private void createTableAndIndex() {
+        String options = "{\n" +
+                "\t\"numShards\":1024,\n" +
+                "\t\"metaColumn\":true,\n" +
+                "\t\"commitMaxDocs\":10,\n" +
+                "\t\"commitIntervalMillis\":200,\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"tags\":{\"type\":\"text\"},\n" +
+                "\t\t\"state\":{}\n" +
+                "\t}\n" +
+                "}\n";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE TAG_COMMIT(key int, tags text, state varchar, segment int, magic text, PRIMARY KEY(segment, key))");
+        getSession().execute("CREATE CUSTOM INDEX tagcommit ON TAG_COMMIT(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+        for (int i = 0; i < 40; i = i + 10) {
+            getSession().execute("insert into " + keyspace + ".TAG_COMMIT (key,tags,state,segment) values (" + (i + 1) + ",'hello1 tag1 lol1', 'CA'," + i + ")");
+            getSession().execute("insert into " + keyspace + ".TAG_COMMIT (key,tags,state,segment) values (" + (i + 2) + ",'hello1 tag1 lol2', 'LA'," + i + ")");
+            getSession().execute("insert into " + keyspace + ".TAG_COMMIT (key,tags,state,segment) values (" + (i + 6) + ",'hello2 tag1 lol1', 'CA'," + i + ")");
+            getSession().execute("insert into " + keyspace + ".TAG_COMMIT (key,tags,state,segment) values (" + (i + 8) + ",'hello2 tag2 lol1', 'CA'," + i + ")");
+            getSession().execute("insert into " + keyspace + ".TAG_COMMIT (key,tags,state,segment) values (" + (i + 10) + ",'hllo3 tag3 lol3', 'TX'," + i + ")");
+        }
+    }
+}
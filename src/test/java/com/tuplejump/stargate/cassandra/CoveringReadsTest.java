@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.datastax.driver.core.Row;
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * User: satya
+ */
+public class CoveringReadsTest extends IndexTestBase {
+
+    String keyspace = "dummyksCovering";
+
+    public CoveringReadsTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldBuildRowsFromIndex() throws Exception {
+        try {
+            createKS(keyspace);
+            createTableAndIndex("TAG_COVERED", "tagcovered", "");
+            String select = "select key, seq, tags, state, value, joindate, writetime(state) from " + keyspace + ".TAG_COVERED where ";
+            //all columns are striped, so rows are built from the index with the write time of the row
+            for (int key = 0; key < 3; key++) {
+                for (Row covered : getSession().execute(select + "key = " + key + " AND magic = '" + q("tags", "hello*") + "'")) {
+                    Row read = getSession().execute(select + "key = " + key + " AND seq = " + covered.getInt("seq")).one();
+                    Assert.assertEquals(read.toString(), covered.toString());
+                }
+            }
+            Assert.assertEquals(8, getSession().execute(select + "magic = '" + q("tags", "hello1") + "'").all().size());
+
+            //a row with an expired cell is read from the table
+            getSession().execute("UPDATE " + keyspace + ".TAG_COVERED USING TTL 3 SET state = 'NY' WHERE key = 1 AND seq = 0");
+            getSession().execute("INSERT INTO " + keyspace + ".TAG_COVERED (key,seq,tags,state,value) VALUES (9,0,'hello1 tag9','CA',90) USING TTL 3");
+            Assert.assertEquals("NY", getSession().execute(select + "key = 1 AND seq = 0 AND magic = '" + q("state", "NY") + "'").one().getString("state"));
+            Assert.assertEquals(9, getSession().execute(select + "magic = '" + q("tags", "tag9") + "'").one().getInt("key"));
+            Thread.sleep(3500);
+            Row expired = getSession().execute(select + "key = 1 AND seq = 0 AND magic = '" + q("tags", "hello*") + "'").one();
+            Assert.assertNull(expired.getString("state"));
+            Assert.assertEquals(10, expired.getInt("value"));
+            Assert.assertEquals(0, getSession().execute(select + "magic = '" + q("tags", "tag9") + "'").all().size());
+        } finally {
+            dropTable(keyspace, "TAG_COVERED");
+            dropKS(keyspace);
+        }
+    }
+
+    @Test
+    public void shouldReadRowsWithDefaultTTLFromTable() throws Exception {
+        try {
+            createKS(keyspace);
+            createTableAndIndex("TAG_EXPIRING", "tagexpiring", " WITH default_time_to_live = 2");
+            List<Row> rows = getSession().execute("select key, seq, state from " + keyspace + ".TAG_EXPIRING where magic = '" + q("tags", "hello*") + "'").all();
+            Assert.assertEquals(12, rows.size());
+            Thread.sleep(3000);
+            Assert.assertEquals(0, countResults("TAG_EXPIRING", "magic = '" + q("tags", "hello*") + "'", true));
+        } finally {
+            dropTable(keyspace, "TAG_EXPIRING");
+            dropKS(keyspace);
+        }
+    }
+
+    private void createTableAndIndex(String table, String indexName, String tableOptions) {
+        String options = "{\n" +
+                "\t\"coveringReads\":true,\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"tags\":{\"type\":\"text\",\"striped\":\"also\"},\n" +
+                "\t\t\"state\":{\"striped\":\"also\"},\n" +
+                "\t\t\"value\":{\"striped\":\"also\"},\n" +
+                "\t\t\"joindate\":{\"striped\":\"also\"}\n" +
+                "\t}\n" +
+                "}";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE " + table + "(key int, seq int, tags varchar, state varchar, value int, joindate timestamp, magic text, PRIMARY KEY (key, seq))" + tableOptions);
+        getSession().execute("CREATE CUSTOM INDEX " + indexName + " ON " + table + "(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+        for (int key = 0; key < 4; key++) {
+            for (int seq = 0; seq < 4; seq++) {
+                String tags = seq == 3 ? "hllo3" : "hello" + (seq % 2 + 1) + " tag" + seq;
+                getSession().execute("insert into " + keyspace + "." + table + " (key,seq,tags,state,value,joindate) values (" + key + "," + seq + ",'" + tags + "', '" + states[key + seq] + "'," + (key * 10 + seq) + ",'2015-0" + (seq + 1) + "-1" + key + "')");
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.SimpleStatement;
+import com.tuplejump.stargate.StargateMBean;
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * User: satya
+ */
+public class IndexSortTest extends IndexTestBase {
+
+    String keyspace = "dummyksIndexSort";
+
+    public IndexSortTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldPageSortedSegmentsInKeyOrder() throws Exception {
+        try {
+            createKS(keyspace);
+            createTableAndIndex("TAG_SORTED", "tagsorted", true);
+            createTableAndIndex("TAG_UNSORTED", "tagunsorted", false);
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(StargateMBean.MBEAN_NAME);
+            for (String indexName : new String[]{"tagsorted", "tagunsorted"}) {
+                mBeanServer.invoke(objectName, "forceMerge", new Object[]{indexName, 1}, new String[]{String.class.getName(), int.class.getName()});
+            }
+            Assert.assertEquals(1L, mBeanServer.invoke(objectName, "indexSortedSegments", new Object[]{"tagsorted"}, new String[]{String.class.getName()}));
+            Assert.assertEquals(0L, mBeanServer.invoke(objectName, "indexSortedSegments", new Object[]{"tagunsorted"}, new String[]{String.class.getName()}));
+
+            for (String where : new String[]{q("tags", "hello*"), q("tags", "tag1"), q("tags", "hello2 AND state:CA")}) {
+                String magic = " where magic = '" + where + "'";
+                List<String> unsorted = rows("TAG_UNSORTED" + magic, 5000);
+                Assert.assertFalse(unsorted.isEmpty());
+                Assert.assertEquals(unsorted, rows("TAG_SORTED" + magic, 5000));
+                for (int limit : new int[]{1, 4, 13}) {
+                    Assert.assertEquals(unsorted.subList(0, Math.min(limit, unsorted.size())), rows("TAG_SORTED" + magic + " limit " + limit, 5000));
+                }
+                for (int fetchSize : new int[]{3, 7, 50}) {
+                    Assert.assertEquals(unsorted, rows("TAG_SORTED" + magic, fetchSize));
+                }
+            }
+        } finally {
+            dropTable(keyspace, "TAG_SORTED");
+            dropTable(keyspace, "TAG_UNSORTED");
+            dropKS(keyspace);
+        }
+    }
+
+    protected List<String> rows(String from, int fetchSize) {
+        List<String> rows = new ArrayList<>();
+        for (Row row : getSession().execute(new SimpleStatement("select key, seq from " + keyspace + "." + from).setFetchSize(fetchSize))) {
+            rows.add(row.getInt("key") + ":" + row.getInt("seq"));
+        }
+        return rows;
+    }
+
+    private void createTableAndIndex(String table, String indexName, boolean indexSort) {
+        String options = "{\n" +
+                "\t\"indexSort\":" + indexSort + ",\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"tags\":{\"type\":\"text\"},\n" +
+                "\t\t\"state\":{}\n" +
+                "\t}\n" +
+                "}";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE " + table + "(key int, seq int, tags varchar, state varchar, magic text, PRIMARY KEY (key, seq))");
+        getSession().execute("CREATE CUSTOM INDEX " + indexName + " ON " + table + "(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+        for (int key = 0; key < 60; key++) {
+            for (int seq = 0; seq < 3; seq++) {
+                getSession().execute("insert into " + keyspace + "." + table + " (key,seq,tags,state) values (" + key + "," + seq + ",'hello" + (seq % 2 + 1) + " tag" + (key % 3) + "', '" + states[(key + seq) % 4] + "')");
+            }
+            //each search reopens the index, so the rows are spread over segments written in insertion order
+            if (key % 10 == 9) countResults(table, "magic = '" + q("tags", "hello*") + "'", true);
+        }
+        getSession().execute("DELETE FROM " + keyspace + "." + table + " WHERE key = 7");
+        getSession().execute("UPDATE " + keyspace + "." + table + " SET tags = 'hello1 tag9' WHERE key = 11 AND seq = 1");
+    }
+}
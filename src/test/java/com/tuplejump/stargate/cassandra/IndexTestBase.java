@@ -19,6 +19,7 @@ package com.tuplejump.stargate.cassandra;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
 import com.google.common.base.Joiner;
 import com.tuplejump.stargate.lucene.Properties;
 import com.tuplejump.stargate.util.CQLUnitD;
@@ -99,6 +100,14 @@ public class IndexTestBase {
         return count1;
     }
 
+    protected int countPagedResults(String tName, String where, int fetchSize, boolean log) {
+        String query = "select * from " + tName + " where " + where;
+        ResultSet result = getSession().execute(new SimpleStatement(query).setFetchSize(fetchSize));
+        int count1 = printResultSet(log, result);
+        System.out.println("Paged search query[" + query + "] with fetch size [" + fetchSize + "] - count [" + count1 + "]");
+        return count1;
+    }
+
     protected int countStarResults(String tName, String where, boolean log) {
         return countStarResults(tName, where, true, log);
     }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.StargateMBean;
+import com.tuplejump.stargate.lucene.Options;
+import com.tuplejump.stargate.lucene.Properties;
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * User: satya
+ */
+public class IndexWriterOptionsTest extends IndexTestBase {
+    String keyspace = "dummyksWriter";
+
+    public IndexWriterOptionsTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldApplyWriterOptions() throws Exception {
+        try {
+            createKS(keyspace);
+            createTableAndIndex("TAG_THREADS", "tagthreads", "\"ramBufferSizeMB\":64,\"maxMergeThreads\":2");
+            createTableAndIndex("TAG_MERGES", "tagmerges", "\"maxMergeCount\":3");
+            Assert.assertEquals(12, countResults("TAG_THREADS", "magic = '" + q("tags", "tags:hello* AND state:CA") + "'", true));
+            Assert.assertEquals(12, countResults("TAG_MERGES", "magic = '" + q("tags", "tags:hello* AND state:CA") + "'", true));
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            String desc = (String) mBeanServer.invoke(new ObjectName(StargateMBean.MBEAN_NAME), "describeIndex", new Object[]{"tagthreads"}, new String[]{String.class.getName()});
+            Assert.assertTrue(desc, desc.contains("\"ramBufferSizeMB\":64.0"));
+            Assert.assertTrue(desc, desc.contains("\"maxMergeThreads\":2"));
+        } finally {
+            dropTable(keyspace, "TAG_THREADS");
+            dropTable(keyspace, "TAG_MERGES");
+            dropKS(keyspace);
+        }
+    }
+
+    @Test
+    public void shouldRejectInvalidMergeSettings() throws Exception {
+        parse("{\"maxMergeThreads\":2}").validate();
+        parse("{\"maxMergeCount\":1}").validate();
+        parse("{\"maxMergeThreads\":2,\"maxMergeCount\":2}").validate();
+        for (String invalid : new String[]{"{\"maxMergeThreads\":3,\"maxMergeCount\":2}", "{\"maxMergeThreads\":0}", "{\"maxMergeCount\":0}"}) {
+            try {
+                parse(invalid).validate();
+                Assert.fail("Expected " + invalid + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+    }
+
+    private Properties parse(String json) throws Exception {
+        return Options.inputMapper.readValue(json, Properties.class);
+    }
+
+    private void createTableAndIndex(String table, String indexName, String writerOptions) {
+        String options = "{\n" +
+                "\t\"numShards\":1024,\n" +
+                "\t\"metaColumn\":true,\n" +
+                "\t" + writerOptions + ",\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"tags\":{\"type\":\"text\"},\n" +
+                "\t\t\"state\":{}\n" +
+                "\t}\n" +
+                "}\n";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE " + table + "(key int, tags text, state varchar, segment int, magic text, PRIMARY KEY(segment, key))");
+        getSession().execute("CREATE CUSTOM INDEX " + indexName + " ON " + table + "(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+        for (int i = 0; i < 40; i = i + 10) {
+            getSession().execute("insert into " + keyspace + "." + table + " (key,tags,state,segment) values (" + (i + 1) + ",'hello1 tag1 lol1', 'CA'," + i + ")");
+            getSession().execute("insert into " + keyspace + "." + table + " (key,tags,state,segment) values (" + (i + 2) + ",'hello1 tag1 lol2', 'LA'," + i + ")");
+            getSession().execute("insert into " + keyspace + "." + table + " (key,tags,state,segment) values (" + (i + 6) + ",'hello2 tag1 lol1', 'CA'," + i + ")");
+            getSession().execute("insert into " + keyspace + "." + table + " (key,tags,state,segment) values (" + (i + 8) + ",'hello2 tag2 lol1', 'CA'," + i + ")");
+            getSession().execute("insert into " + keyspace + "." + table + " (key,tags,state,segment) values (" + (i + 10) + ",'hllo3 tag3 lol3', 'TX'," + i + ")");
+        }
+    }
+}
@@ -48,6 +48,7 @@ public class NumericQueryTest extends IndexTestBase {
 
     private void createTableAndIndexForCol() {
         String options = "{\n" +
+                "\t\"reopenMaxStaleMillis\":500,\n" +
                 "\t\"fields\":{\n" +
                 "\t\t\"gdp\":{\"type\":\"integer\"}\n" +
 
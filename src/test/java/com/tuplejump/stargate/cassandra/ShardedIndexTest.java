@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.StargateMBean;
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * User: satya
+ */
+public class ShardedIndexTest extends IndexTestBase {
+
+    String keyspace = "dummyksSharded";
+
+    public ShardedIndexTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldIndexAcrossShards() throws Exception {
+        try {
+            createKS(keyspace);
+            createTableAndIndex();
+            Assert.assertEquals(40, countResults("TAG_SHARDS", "", false, true));
+            Assert.assertEquals(10, countResults("TAG_SHARDS", "magic = '" + q("state", "state:CA") + "'", true));
+            Assert.assertEquals(20, countResults("TAG_SHARDS", "magic = '" + q("tags", "hello1") + "'", true));
+            Assert.assertEquals(5, countResults("TAG_SHARDS", "magic = '" + q("tags", "hello1") + "' limit 5", true));
+            Assert.assertEquals(1, countStarResults("TAG_SHARDS", "magic = '" + q("tags", "hello*") + "'", true));
+            //updates and deletes go to the shard of the partition
+            getSession().execute("UPDATE " + keyspace + ".TAG_SHARDS SET tags = 'hello2' WHERE key = 1 AND seq = 0");
+            getSession().execute("DELETE FROM " + keyspace + ".TAG_SHARDS WHERE key = 2");
+            Assert.assertEquals(17, countResults("TAG_SHARDS", "magic = '" + q("tags", "hello1") + "'", true));
+            Assert.assertEquals(3, countResults("TAG_SHARDS", "key = 1 AND magic = '" + q("tags", "hello2") + "'", true));
+            Assert.assertEquals(0, countResults("TAG_SHARDS", "key = 2 AND magic = '" + q("tags", "hello*") + "'", true));
+
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(StargateMBean.MBEAN_NAME);
+            String[] shards = (String[]) mBeanServer.invoke(objectName, "indexShards", new Object[]{"tagshards"}, new String[]{String.class.getName()});
+            Assert.assertEquals(4, shards.length);
+        } finally {
+            dropTable(keyspace, "TAG_SHARDS");
+            dropKS(keyspace);
+        }
+    }
+
+    private void createTableAndIndex() {
+        String options = "{\n" +
+                "\t\"container\":\"sharded\",\n" +
+                "\t\"shards\":4,\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"state\":{},\n" +
+                "\t\t\"tags\":{}\n" +
+                "\t}\n" +
+                "}";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE TAG_SHARDS(key int, seq int, tags varchar, state varchar, magic text, PRIMARY KEY (key, seq))");
+        getSession().execute("CREATE CUSTOM INDEX tagshards ON TAG_SHARDS(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+        for (int i = 0; i < 10; i++) {
+            for (int seq = 0; seq < 4; seq++) {
+                getSession().execute("insert into " + keyspace + ".TAG_SHARDS (key,seq,tags,state) values (" + i + "," + seq + ",'hello" + (seq % 2 + 1) + " tag" + seq + "', '" + states[seq] + "')");
+            }
+        }
+    }
+}
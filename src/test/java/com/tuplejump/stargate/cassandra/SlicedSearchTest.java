@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.datastax.driver.core.Row;
+import com.tuplejump.stargate.StargateMBean;
+import com.tuplejump.stargate.lucene.ParallelSearcher;
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * User: satya
+ */
+public class SlicedSearchTest extends IndexTestBase {
+
+    String keyspace = "dummyksSliced";
+
+    public SlicedSearchTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldSearchInSlices() throws Exception {
+        try {
+            createKS(keyspace);
+            createTableAndIndex();
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(StargateMBean.MBEAN_NAME);
+            long slicedSearches = (Long) mBeanServer.invoke(objectName, "slicedSearches", new Object[]{}, new String[]{});
+
+            assertSameInSlices("magic = '" + q("tags", "hello*") + "'", 80);
+            assertSameInSlices("magic = '" + q("tags", "hello*") + "' limit 7", 7);
+            assertSameInSlices("magic = '" + q("tags", "hello*", "value") + "'", 80);
+            assertSameInSlices("magic = '" + q("tags", "hello*", "value") + "' limit 7", 7);
+            assertSameInSlices("magic = '" + q("tags", "tag1 AND state:CA", "state", "value") + "'", 8);
+            assertSameInSlices("magic = '" + funWithFilter(fun(null, "count-star", "count", false), "tags", "tags:hello*") + "'", 1);
+            assertSameInSlices("magic = '" + funWithFilter(gFun("value", "sum-value", "sum", false, "state"), "tags", "tags:hello*") + "'", 1);
+            Assert.assertTrue((Long) mBeanServer.invoke(objectName, "slicedSearches", new Object[]{}, new String[]{}) > slicedSearches);
+        } finally {
+            ParallelSearcher.setMinSliceDocs(ParallelSearcher.MIN_SLICE_DOCS);
+            dropTable(keyspace, "TAG_SLICES");
+            dropKS(keyspace);
+        }
+    }
+
+    @Test
+    public void shouldAggregateInSlices() throws Exception {
+        try {
+            createKS(keyspace);
+            createTableAndIndex();
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(StargateMBean.MBEAN_NAME);
+            long slicedSearches = (Long) mBeanServer.invoke(objectName, "slicedSearches", new Object[]{}, new String[]{});
+
+            //the groups of each slice are merged, so they must come out the same as from a single slice
+            assertSameInSlices("magic = '" + funWithFilter(fun("value", "sum-value", "sum", false), "tags", "tags:hello*") + "'", 1);
+            assertSameInSlices("magic = '" + funWithFilter(gFun("value", "min-value", "min", false, "state"), "tags", "tags:hello*") + "'", 1);
+            assertSameInSlices("magic = '" + funWithFilter(gFun("value", "max-value", "max", false, "state"), "tags", "tags:hello*") + "'", 1);
+            assertSameInSlices("magic = '" + funWithFilter(fun("state", "max-state", "max", false), "tags", "tags:hello*") + "'", 1);
+            assertSameInSlices("magic = '" + funWithFilter(gQuantile("value", "quantile-value", false, "state", 100), "tags", "tags:hello*") + "'", 1);
+            assertSameInSlices("magic = '" + funWithFilter(gFun("value", "distinct-value", "count", true, "state"), "tags", "tags:hello*") + "'", 1);
+            assertSameInSlices("magic = '" + funWithFilter(fun("state", "distinct-state", "count", true), "tags", "tags:hello*") + "'", 1);
+            Assert.assertTrue((Long) mBeanServer.invoke(objectName, "slicedSearches", new Object[]{}, new String[]{}) > slicedSearches);
+        } finally {
+            ParallelSearcher.setMinSliceDocs(ParallelSearcher.MIN_SLICE_DOCS);
+            dropTable(keyspace, "TAG_SLICES");
+            dropKS(keyspace);
+        }
+    }
+
+    @Test
+    public void shouldDecodeSlicesOfConcurrentSearches() throws Exception {
+        try {
+            createKS(keyspace);
+            createTableAndIndex();
+            final List<String> wheres = new ArrayList<>();
+            wheres.add("magic = '" + q("tags", "hello*") + "' limit 7");
+            wheres.add("magic = '" + q("tags", "hello*", "value") + "' limit 7");
+            wheres.add("magic = '" + q("tags", "tag1 AND state:CA", "state", "value") + "'");
+            wheres.add("magic = '" + funWithFilter(gFun(null, "count-state", "count", false, "state"), "tags", "tags:hello*") + "'");
+            wheres.add("magic = '" + funWithFilter(fun("value", "values-value", "values", false), "tags", "tags:hllo*") + "'");
+            ParallelSearcher.setMinSliceDocs(Integer.MAX_VALUE);
+            final List<List<String>> expected = new ArrayList<>();
+            for (String where : wheres) {
+                expected.add(rows(where));
+            }
+            //entries are decoded by the searching thread while the pool threads search other slices of the segments
+            ParallelSearcher.setMinSliceDocs(1);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (int i = 0; i < 40; i++) {
+                    final int query = i % wheres.size();
+                    results.add(executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            return expected.get(query).equals(rows(wheres.get(query)));
+                        }
+                    }));
+                }
+                for (Future<Boolean> result : results) {
+                    Assert.assertTrue(result.get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+        } finally {
+            ParallelSearcher.setMinSliceDocs(ParallelSearcher.MIN_SLICE_DOCS);
+            dropTable(keyspace, "TAG_SLICES");
+            dropKS(keyspace);
+        }
+    }
+
+    /**
+     * Searches with all segments in one slice, then with a slice per segment.
+     */
+    protected void assertSameInSlices(String where, int expected) {
+        ParallelSearcher.setMinSliceDocs(Integer.MAX_VALUE);
+        List<String> unsliced = rows(where);
+        ParallelSearcher.setMinSliceDocs(1);
+        List<String> sliced = rows(where);
+        ParallelSearcher.setMinSliceDocs(Integer.MAX_VALUE);
+        Assert.assertEquals(expected, unsliced.size());
+        Assert.assertEquals(unsliced, sliced);
+    }
+
+    protected List<String> rows(String where) {
+        List<String> rows = new ArrayList<>();
+        for (Row row : getResults("TAG_SLICES", where, true)) {
+            rows.add(row.toString());
+        }
+        return rows;
+    }
+
+    private void createTableAndIndex() {
+        //segments over half the max merged size are never merged, so the segments stay apart
+        String options = "{\n" +
+                "\t\"maxMergedSegmentMB\":0.001,\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"tags\":{\"type\":\"text\"},\n" +
+                "\t\t\"state\":{\"striped\":\"also\"},\n" +
+                "\t\t\"value\":{\"striped\":\"also\"}\n" +
+                "\t}\n" +
+                "}";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE TAG_SLICES(key int, seq int, tags varchar, state varchar, value int, magic text, PRIMARY KEY (key, seq))");
+        getSession().execute("CREATE CUSTOM INDEX tagslices ON TAG_SLICES(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+        for (int key = 0; key < 20; key++) {
+            for (int seq = 0; seq < 5; seq++) {
+                int value = key * 5 + seq;
+                getSession().execute("insert into " + keyspace + ".TAG_SLICES (key,seq,tags,state,value) values (" + key + "," + seq + ",'" + (seq == 4 ? "hllo3" : "hello" + (seq % 2 + 1)) + " tag" + (value % 3) + "', '" + states[value % 4] + "'," + value + ")");
+            }
+            //each search reopens the index, so the rows of every few partitions are in a segment of their own
+            if (key % 4 == 3) countResults("TAG_SLICES", "magic = '" + q("tags", "hello*") + "'", true);
+        }
+    }
+}
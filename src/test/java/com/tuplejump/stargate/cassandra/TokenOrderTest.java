@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.SimpleStatement;
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * User: satya
+ */
+public class TokenOrderTest extends IndexTestBase {
+
+    String keyspace = "dummyksTokenOrder";
+
+    public TokenOrderTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldReturnLimitedRowsInTokenOrder() throws Exception {
+        try {
+            createKS(keyspace);
+            createTableAndIndex();
+            List<String> all = rows("select key, seq from " + keyspace + ".TAG_TOKENS");
+            Assert.assertEquals(400, all.size());
+            String hello = "magic = '" + q("tags", "hello*") + "'";
+            Assert.assertEquals(all, rows("select key, seq from " + keyspace + ".TAG_TOKENS where " + hello));
+            for (int limit : new int[]{1, 3, 15, 41}) {
+                Assert.assertEquals(all.subList(0, limit), rows("select key, seq from " + keyspace + ".TAG_TOKENS where " + hello + " limit " + limit));
+            }
+            //partitions read ahead are traced in the session of the query
+            ResultSet traced = getSession().execute(new SimpleStatement("select key, seq from " + keyspace + ".TAG_TOKENS where " + hello + " limit 15").enableTracing());
+            Assert.assertEquals(15, traced.all().size());
+            Assert.assertTrue(tracedOnFetchPool(traced.getExecutionInfo().getQueryTrace().getTraceId()));
+        } finally {
+            dropTable(keyspace, "TAG_TOKENS");
+            dropKS(keyspace);
+        }
+    }
+
+    @Test
+    public void shouldScanTokenRangeSplits() throws Exception {
+        try {
+            createKS(keyspace);
+            createTableAndIndex();
+            List<Long> tokens = new ArrayList<>();
+            List<String> all = new ArrayList<>();
+            for (Row row : getSession().execute("select token(key), key, seq from " + keyspace + ".TAG_TOKENS")) {
+                tokens.add(row.getLong(0));
+                all.add(row.getInt("key") + ":" + row.getInt("seq"));
+            }
+            long lower = tokens.get(tokens.size() / 3);
+            long upper = tokens.get(2 * tokens.size() / 3);
+            String hello = " AND magic = '" + q("tags", "hello*") + "'";
+            String select = "select key, seq from " + keyspace + ".TAG_TOKENS where ";
+
+            List<String> first = rows(select + "token(key) <= " + lower + hello);
+            List<String> middle = rows(select + "token(key) > " + lower + " AND token(key) <= " + upper + hello);
+            List<String> last = rows(select + "token(key) > " + upper + hello);
+            Assert.assertEquals(inRange(tokens, all, Long.MIN_VALUE, lower), first);
+            Assert.assertEquals(inRange(tokens, all, lower, upper), middle);
+            Assert.assertEquals(inRange(tokens, all, upper, Long.MAX_VALUE), last);
+            Assert.assertEquals(all.size(), first.size() + middle.size() + last.size());
+
+            //cql has no wrapping ranges, so a split from upper around the ring to lower is scanned as its two ends
+            List<String> wrapped = rows(select + "token(key) > " + upper + hello);
+            wrapped.addAll(rows(select + "token(key) <= " + lower + hello));
+            List<String> expected = new ArrayList<>(all);
+            expected.removeAll(middle);
+            Collections.sort(expected);
+            Collections.sort(wrapped);
+            Assert.assertEquals(expected, wrapped);
+        } finally {
+            dropTable(keyspace, "TAG_TOKENS");
+            dropKS(keyspace);
+        }
+    }
+
+    /**
+     * @return the rows with tokens in (lower, upper].
+     */
+    private static List<String> inRange(List<Long> tokens, List<String> rows, long lower, long upper) {
+        List<String> inRange = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            if ((lower == Long.MIN_VALUE || tokens.get(i) > lower) && tokens.get(i) <= upper) inRange.add(rows.get(i));
+        }
+        return inRange;
+    }
+
+    protected List<String> rows(String query) {
+        List<String> rows = new ArrayList<>();
+        for (Row row : getSession().execute(query)) {
+            rows.add(row.getInt("key") + ":" + row.getInt("seq"));
+        }
+        return rows;
+    }
+
+    /**
+     * Trace events are written asynchronously, so they are polled for a while.
+     */
+    private boolean tracedOnFetchPool(UUID session) throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            for (Row event : getSession().execute("select thread from system_traces.events where session_id = " + session)) {
+                if (event.getString("thread").startsWith("SGFetch")) return true;
+            }
+            Thread.sleep(100);
+        }
+        return false;
+    }
+
+    private void createTableAndIndex() {
+        String options = "{\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"tags\":{\"type\":\"text\"}\n" +
+                "\t}\n" +
+                "}";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE TAG_TOKENS(key int, seq int, tags varchar, magic text, PRIMARY KEY (key, seq))");
+        getSession().execute("CREATE CUSTOM INDEX tagtokens ON TAG_TOKENS(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+        for (int key = 0; key < 200; key++) {
+            for (int seq = 0; seq < 2; seq++) {
+                getSession().execute("insert into " + keyspace + ".TAG_TOKENS (key,seq,tags) values (" + key + "," + seq + ",'hello" + (seq + 1) + " tag" + (key % 7) + "')");
+            }
+        }
+    }
+}
@@ -32,7 +32,7 @@ public class UpdateAndQueryTest extends IndexTestBase {
         getSession().execute("CREATE TABLE PERSON (id int,isActive boolean,age int,eyeColor varchar," +
                 "name text,gender varchar,company varchar,email varchar,phone varchar,address text,stargate text, PRIMARY KEY (id,email));");
         getSession().execute("CREATE CUSTOM INDEX person_idx ON PERSON(stargate) USING" +
-                "'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'{\"fields\":{\"age\":{},\"eyeColor\":{},\"name\":{}," +
+                "'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'{\"directory\":\"mmap\",\"nrtCachingMaxCachedMB\":16,\"fields\":{\"age\":{},\"eyeColor\":{},\"name\":{}," +
                 "\"gender\":{},\"company\":{},\"phone\":{},\"address\":{},\"isActive\":{}}}'};");
         getSession().execute("INSERT INTO PERSON(id,isActive,age,eyeColor,name,gender,company,email,phone,address) VALUES(1,false,29,'green','Davidson Hurst','male','TALKOLA','davidsonhurst@talkola.com','+1 (950) 405-2257','691 Hampton Place, Felt, North Carolina, 8466');");
         getSession().execute("INSERT INTO PERSON(id,isActive,age,eyeColor,name,gender,company,email,phone,address) VALUES(2,false,27,'black','Maxwell Kemp','male','AMTAP','maxwellkemp@amtap.com','+1 (800) 495-3822','466 Kenilworth Place, Fivepointville, Maryland, 6240');");
@@ -16,11 +16,16 @@
 
 package com.tuplejump.stargate.cassandra;
 
+import com.tuplejump.stargate.StargateMBean;
 import com.tuplejump.stargate.util.CQLUnitD;
 import junit.framework.Assert;
 import org.apache.cassandra.service.StorageService;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
 /**
  * User: satya
  */
@@ -46,6 +51,11 @@ public class VariousQueriesTest extends IndexTestBase {
             Assert.assertEquals(5, countResults("sample_table", "part=0 AND magic = '" + fq(1, "searchName", "CATA") + "'", true));
             Assert.assertEquals(0, countResults("sample_table", "part=0 AND magic = '" + fq(0, "searchName", "CCTA") + "'", true));
             Assert.assertEquals(10, countResults("sample_table", "part=0 AND magic = '" + fq(1, "searchName", "CZTV") + "'", true));
+            //repeated filters are served from the query cache
+            long queryCacheHits = queryCacheHits();
+            Assert.assertEquals(10, countResults("sample_table", "part=0 AND magic = '" + fq(1, "searchName", "CZTV") + "'", true));
+            Assert.assertEquals(10, countResults("sample_table", "part=0 AND magic = '" + fq(1, "searchName", "CZTV") + "'", true));
+            Assert.assertTrue(queryCacheHits() > queryCacheHits);
             Assert.assertEquals(10, countResults("sample_table", "part=0 AND magic = '" + q("searchName", "CATV CCTV") + "'", true));
             Assert.assertEquals(1, countResults("sample_table", "part=0 AND magic = '" + phq(0, "searchName", "aaaa", "BBBB") + "'", true));
             Assert.assertEquals(6, countResults("sample_table", "part=0 AND magic = '" + gtq("searchName", "CATV") + "'", true));
@@ -69,10 +79,17 @@ public class VariousQueriesTest extends IndexTestBase {
         }
     }
 
+    private long queryCacheHits() throws Exception {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        return (Long) mBeanServer.invoke(new ObjectName(StargateMBean.MBEAN_NAME), "indexQueryCacheHits", new Object[]{"sample_table_searchname_key"}, new String[]{String.class.getName()});
+    }
+
     private void createTableAndIndexForRow() {
         //add idx options with DOCS_AND_FREQS_AND_POSITIONS for phrase queries.
         String options = "{\n" +
                 "\t\"metaColumn\":true,\n" +
+                "\t\"queryCacheMaxEntries\":100,\n" +
+                "\t\"queryCacheMinUses\":2,\n" +
                 "\t\"fields\":{\n" +
                 "\t\t\"searchName\":{\"indexOptions\":\"DOCS_AND_FREQS_AND_POSITIONS\"},\n" +
                 "\t\t\"otherName\":{},\n" +